@@ -0,0 +1,47 @@
+package com.sismics.books.rest.util;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sismics.books.core.dao.jpa.ReadStateBuffer;
+import com.sismics.books.core.service.ImportQueue;
+
+/**
+ * Starts the background services with the web application, and stops them with it.
+ * The services also start on first use, without this listener.
+ *
+ * @author agent
+ */
+@WebListener
+public class BackgroundServiceListener implements ServletContextListener {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(BackgroundServiceListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // Resume the spooled imports now rather than on first use
+        ImportQueue.getInstance();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        try {
+            ImportQueue.getInstance().stop();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while stopping the import workers");
+            Thread.currentThread().interrupt();
+        }
+
+        // Write the buffered read states before the database is closed
+        ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+        if (readStateBuffer != null) {
+            readStateBuffer.stop();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+
+/**
+ * Read-through cache of the book catalog, shared by all users.
+ * 
+ * Cached books are detached and must not be modified. Entries expire after a
+ * short TTL so that nodes sharing the same database converge on updates made
+ * by other nodes. Local writes invalidate the entries immediately.
+ * 
+ * @author agent
+ */
+public class BookCache {
+    /**
+     * Singleton.
+     */
+    private static final BookCache instance = new BookCache(
+            Long.getLong("books.cache.book.size", 10000L),
+            Long.getLong("books.cache.book.ttl", 60000L));
+    
+    /**
+     * Books by ID.
+     */
+    private final Cache<String, Book> bookCache;
+    
+    /**
+     * Book IDs by ISBN, in all forms.
+     */
+    private final Cache<String, String> isbnCache;
+    
+    /**
+     * Constructor of BookCache.
+     * 
+     * @param maximumSize Maximum number of books
+     * @param ttl Time to live of an entry, in milliseconds
+     */
+    public BookCache(long maximumSize, long ttl) {
+        bookCache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        isbnCache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize * 4)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+    
+    /**
+     * Returns the shared instance.
+     * 
+     * @return Book cache
+     */
+    public static BookCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Returns a book by ID.
+     * 
+     * @param id Book ID
+     * @return Book, or null
+     */
+    public Book getById(String id) {
+        Book book = bookCache.getIfPresent(id);
+        if (book == null) {
+            book = new BookDao().getById(id);
+            put(book);
+        }
+        return book;
+    }
+    
+    /**
+     * Returns a book by ISBN, in any form.
+     * 
+     * @param isbn ISBN
+     * @return Book, or null
+     */
+    public Book getByIsbn(String isbn) {
+        String id = isbnCache.getIfPresent(isbn);
+        if (id != null) {
+            Book book = bookCache.getIfPresent(id);
+            if (book != null) {
+                return book;
+            }
+        }
+        
+        // Misses are not cached, the book may be created by another node
+        Book book = new BookIsbnDao().getByAnyIsbn(Arrays.asList(isbn));
+        if (book != null) {
+            isbnCache.put(isbn, book.getId());
+            put(book);
+        }
+        return book;
+    }
+    
+    /**
+     * Adds a book to the cache, after it is read or created.
+     * 
+     * @param book Book, may be null
+     */
+    public void put(Book book) {
+        if (book == null) {
+            return;
+        }
+        bookCache.put(book.getId(), book);
+        for (String isbn : IsbnUtil.getVariants(Arrays.asList(book.getIsbn10(), book.getIsbn13()))) {
+            isbnCache.put(isbn, book.getId());
+        }
+    }
+    
+    /**
+     * Removes a book from the cache, before and after it is modified.
+     * 
+     * @param book Book
+     */
+    public void invalidate(Book book) {
+        invalidate(book.getId(), Arrays.asList(book.getIsbn10(), book.getIsbn13()));
+    }
+    
+    /**
+     * Removes a book from the cache, with ISBNs it may no longer have.
+     * 
+     * @param bookId Book ID
+     * @param isbns ISBNs
+     */
+    public void invalidate(String bookId, Collection<String> isbns) {
+        bookCache.invalidate(bookId);
+        isbnCache.invalidateAll(IsbnUtil.getVariants(isbns));
+    }
+    
+    /**
+     * Returns the statistics of the books by ID.
+     * 
+     * @return Cache statistics
+     */
+    public CacheStats getBookStats() {
+        return bookCache.stats();
+    }
+    
+    /**
+     * Returns the statistics of the book IDs by ISBN.
+     * 
+     * @return Cache statistics
+     */
+    public CacheStats getIsbnStats() {
+        return isbnCache.stats();
+    }
+    
+    /**
+     * Returns the number of cached books.
+     * 
+     * @return Size
+     */
+    public long size() {
+        return bookCache.size();
+    }
+}
@@ -0,0 +1,60 @@
+package com.sismics.books.core.service;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import com.sismics.books.core.model.context.AppContext;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+
+/**
+ * Book lookup provider backed by the configured BookDataService.
+ *
+ * The service reports a book not found and a failed call both as exceptions, they are
+ * told apart by type: an I/O error, a timeout or an interruption anywhere in the causes
+ * is a failure of the service, any other error on a well-formed ISBN is its answer
+ * that the book is not found.
+ *
+ * @author agent
+ */
+public class BookDataServiceLookupProvider implements BookLookupProvider {
+    @Override
+    public String getName() {
+        return "bookDataService";
+    }
+
+    @Override
+    public Book searchBook(String isbn) throws Exception {
+        // No provider knows a malformed ISBN, do not call the service
+        if (IsbnUtil.toIsbn13(isbn) == null) {
+            return null;
+        }
+
+        try {
+            return AppContext.getInstance().getBookDataService().searchBook(isbn);
+        } catch (Exception e) {
+            if (isFailure(e)) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if an error of the BookDataService is a failure of the service,
+     * rather than an answer.
+     *
+     * @param e Error, possibly wrapping the cause
+     * @return True if the service failed
+     */
+    private static boolean isFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException
+                    || cause instanceof InterruptedException || cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return Thread.currentThread().isInterrupted();
+    }
+}
@@ -0,0 +1,84 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * ISBN queries on the book catalog.
+ * 
+ * @author agent
+ */
+public class BookIsbnDao {
+    /**
+     * Returns the books matching any of the given ISBNs, in one query.
+     * ISBN-10 and ISBN-13 forms of the same book match each other.
+     * 
+     * @param isbns ISBNs, in any form
+     * @return Books
+     */
+    @SuppressWarnings("unchecked")
+    public List<Book> getByIsbns(Collection<String> isbns) {
+        Set<String> variantSet = IsbnUtil.getVariants(isbns);
+        if (variantSet.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select b from Book b where b.isbn10 in (:isbns) or b.isbn13 in (:isbns)");
+        q.setParameter("isbns", variantSet);
+        return q.getResultList();
+    }
+    
+    /**
+     * Returns the first book matching any of the given ISBNs.
+     * 
+     * @param isbns ISBNs, in any form
+     * @return Book, or null
+     */
+    public Book getByAnyIsbn(Collection<String> isbns) {
+        List<Book> bookList = getByIsbns(isbns);
+        return bookList.isEmpty() ? null : bookList.get(0);
+    }
+    
+    /**
+     * Returns a page of the ISBNs of the catalog, in book ID order.
+     * Each page starts after the last book ID of the previous one, so that reading
+     * the whole catalog costs one index range scan by page.
+     * 
+     * @param afterId Last book ID of the previous page, null for the first page
+     * @param limit Maximum number of books
+     * @param isbnList Filled with the ISBN-10 and ISBN-13 of the books, empty ones excluded
+     * @return Last book ID of the page, or null if the page is empty
+     */
+    @SuppressWarnings("unchecked")
+    public String getIsbnPage(String afterId, int limit, List<String> isbnList) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select b.BOK_ID_C, b.BOK_ISBN10_C, b.BOK_ISBN13_C from T_BOOK b"
+                + (afterId == null ? "" : " where b.BOK_ID_C > :afterId")
+                + " order by b.BOK_ID_C");
+        if (afterId != null) {
+            q.setParameter("afterId", afterId);
+        }
+        q.setMaxResults(limit);
+        String lastId = null;
+        for (Object[] o : (List<Object[]>) q.getResultList()) {
+            lastId = (String) o[0];
+            if (o[1] != null) {
+                isbnList.add((String) o[1]);
+            }
+            if (o[2] != null) {
+                isbnList.add((String) o[2]);
+            }
+        }
+        return lastId;
+    }
+}
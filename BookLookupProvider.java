@@ -0,0 +1,27 @@
+package com.sismics.books.core.service;
+
+import com.sismics.books.core.model.jpa.Book;
+
+/**
+ * Source of book data, queried by ISBN.
+ *
+ * @author agent
+ */
+public interface BookLookupProvider {
+    /**
+     * Returns the provider name.
+     *
+     * @return Name
+     */
+    String getName();
+
+    /**
+     * Searches a book by ISBN.
+     * The returned book is not persisted.
+     *
+     * @param isbn ISBN-10 or ISBN-13
+     * @return Book, or null if this provider doesn't know the ISBN
+     * @throws Exception If the provider is unavailable
+     */
+    Book searchBook(String isbn) throws Exception;
+}
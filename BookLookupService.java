@@ -0,0 +1,491 @@
+package com.sismics.books.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+
+/**
+ * Book lookup across a chain of providers.
+ *
+ * Providers are tried in order. If a provider is slower than its usual latency
+ * percentile, the next one is started in parallel (hedged request) and the first
+ * book found wins. Each provider has its own timeout and circuit breaker.
+ * The local ISBN mirror, if any, is consulted before any remote provider,
+ * and the ISBNs recently not found by every provider are not searched again.
+ * An ISBN is only remembered as not found if every provider was called and answered,
+ * not if one failed, timed out or was skipped by its open circuit.
+ *
+ * @author agent
+ */
+public class BookLookupService {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(BookLookupService.class);
+
+    /**
+     * Default instance.
+     */
+    private static volatile BookLookupService instance;
+
+    /**
+     * Local ISBN mirror, may be null.
+     */
+    private final IsbnMetadataMirror mirror;
+
+    /**
+     * Provider chain.
+     */
+    private final List<ProviderState> providerList;
+
+    /**
+     * Latency percentile after which the next provider is hedged.
+     */
+    private final double hedgePercentile;
+
+    /**
+     * Per-provider timeout, in milliseconds.
+     */
+    private final long providerTimeout;
+
+    /**
+     * Executor running the provider calls.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Executor running the searches of a bulk search, bounds their parallelism.
+     */
+    private final ExecutorService bulkExecutor;
+
+    /**
+     * ISBN-13 recently not found by any provider.
+     */
+    private final Cache<String, Boolean> notFoundCache;
+
+    /**
+     * Constructor of BookLookupService.
+     *
+     * @param mirror Local ISBN mirror, may be null
+     * @param providerList Provider chain, in order of preference
+     * @param hedgePercentile Latency percentile after which the next provider is hedged, e.g. 0.95
+     * @param providerTimeout Per-provider timeout, in milliseconds
+     * @param failureThreshold Consecutive failures opening a provider circuit
+     * @param openDuration Time a provider circuit stays open, in milliseconds
+     * @param bulkParallelism Maximum number of searches in parallel for bulk searches
+     * @param notFoundTtl Time an ISBN not found is remembered, in milliseconds
+     */
+    public BookLookupService(IsbnMetadataMirror mirror, List<BookLookupProvider> providerList, double hedgePercentile,
+            long providerTimeout, int failureThreshold, long openDuration, int bulkParallelism, long notFoundTtl) {
+        this.mirror = mirror;
+        this.providerList = new ArrayList<>();
+        for (BookLookupProvider provider : providerList) {
+            this.providerList.add(new ProviderState(provider, new CircuitBreaker(failureThreshold, openDuration)));
+        }
+        this.hedgePercentile = hedgePercentile;
+        this.providerTimeout = providerTimeout;
+        this.executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("book-lookup-%d").setDaemon(true).build());
+        this.bulkExecutor = Executors.newFixedThreadPool(bulkParallelism,
+                new ThreadFactoryBuilder().setNameFormat("book-bulk-lookup-%d").setDaemon(true).build());
+        this.notFoundCache = CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(notFoundTtl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the default instance: the mirror configured by books.lookup.mirror, if any,
+     * then the configured BookDataService, then Open Library if books.lookup.openLibrary is set.
+     *
+     * @return Book lookup service
+     */
+    public static BookLookupService getInstance() {
+        if (instance == null) {
+            synchronized (BookLookupService.class) {
+                if (instance == null) {
+                    List<BookLookupProvider> providerList = new ArrayList<>();
+                    providerList.add(new BookDataServiceLookupProvider());
+                    if (Boolean.getBoolean("books.lookup.openLibrary")) {
+                        providerList.add(new OpenLibraryBookLookupProvider(
+                                System.getProperty("books.lookup.openLibraryUrl", "https://openlibrary.org"),
+                                Integer.getInteger("books.lookup.providerTimeout", 5000)));
+                    }
+                    IsbnMetadataMirror mirror = null;
+                    String mirrorPath = System.getProperty("books.lookup.mirror");
+                    if (!Strings.isNullOrEmpty(mirrorPath)) {
+                        try {
+                            mirror = new IsbnMetadataMirror(new File(mirrorPath));
+                        } catch (IOException e) {
+                            log.error("Error opening the ISBN mirror " + mirrorPath, e);
+                        }
+                    }
+                    instance = new BookLookupService(mirror, providerList,
+                            Double.parseDouble(System.getProperty("books.lookup.hedgePercentile", "0.95")),
+                            Long.getLong("books.lookup.providerTimeout", 5000L),
+                            Integer.getInteger("books.lookup.failureThreshold", 5),
+                            Long.getLong("books.lookup.openDuration", 30000L),
+                            Integer.getInteger("books.lookup.bulkParallelism", 8),
+                            Long.getLong("books.lookup.notFoundTtl", 3600000L));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the default instance, e.g. by a chain of stub providers in load tests.
+     *
+     * @param bookLookupService Book lookup service
+     */
+    public static void setInstance(BookLookupService bookLookupService) {
+        synchronized (BookLookupService.class) {
+            instance = bookLookupService;
+        }
+    }
+
+    /**
+     * Searches a book in the local ISBN mirror only.
+     *
+     * @param isbn ISBN-10 or ISBN-13
+     * @return Book, not persisted, or null if not found locally
+     */
+    public Book searchLocal(String isbn) {
+        return mirror == null ? null : mirror.searchBook(isbn);
+    }
+
+    /**
+     * Searches a book by ISBN, in the local mirror then through the provider chain.
+     *
+     * @param isbn ISBN-10 or ISBN-13
+     * @return Book, not persisted
+     * @throws BookLookupException If no provider found the book
+     * @throws InterruptedException If interrupted while waiting for providers
+     */
+    public Book searchBook(final String isbn) throws BookLookupException, InterruptedException {
+        Book localBook = searchLocal(isbn);
+        if (localBook != null) {
+            return localBook;
+        }
+        String isbn13 = IsbnUtil.toIsbn13(isbn);
+        String notFoundKey = isbn13 == null ? Strings.nullToEmpty(isbn) : isbn13;
+        if (notFoundCache.getIfPresent(notFoundKey) != null) {
+            throw new BookLookupException("Book not found with ISBN " + isbn, null);
+        }
+
+        CompletionService<Book> completionService = new ExecutorCompletionService<>(executor);
+        List<Attempt> attemptList = new ArrayList<>();
+        int nextProvider = 0;
+        int running = 0;
+        boolean skipped = false;
+        Exception lastError = null;
+
+        try {
+            while (true) {
+                // Start the next provider if nothing is running, or if the latest attempt is slower than usual
+                Attempt latest = attemptList.isEmpty() ? null : attemptList.get(attemptList.size() - 1);
+                if (nextProvider < providerList.size()
+                        && (running == 0 || System.nanoTime() >= latest.hedgeTime)) {
+                    ProviderState providerState = providerList.get(nextProvider++);
+                    CircuitBreaker.Permit permit = providerState.circuitBreaker.tryAcquire();
+                    if (permit != null) {
+                        attemptList.add(start(completionService, providerState, permit, isbn));
+                        running++;
+                    } else {
+                        skipped = true;
+                    }
+                    continue;
+                }
+                if (running == 0) {
+                    break;
+                }
+
+                // Wait for the next completion, hedge or timeout
+                long now = System.nanoTime();
+                long wakeTime = Long.MAX_VALUE;
+                for (Attempt attempt : attemptList) {
+                    if (!attempt.done) {
+                        wakeTime = Math.min(wakeTime, attempt.deadline);
+                    }
+                }
+                if (nextProvider < providerList.size()) {
+                    wakeTime = Math.min(wakeTime, latest.hedgeTime);
+                }
+                Future<Book> future = completionService.poll(Math.max(0, wakeTime - now), TimeUnit.NANOSECONDS);
+
+                if (future == null) {
+                    // Time out the attempts past their deadline
+                    now = System.nanoTime();
+                    for (Attempt attempt : attemptList) {
+                        if (!attempt.done && now >= attempt.deadline) {
+                            attempt.done = true;
+                            attempt.future.cancel(true);
+                            attempt.permit.recordFailure();
+                            lastError = new Exception("Timeout searching on " + attempt.providerState.provider.getName());
+                            running--;
+                        }
+                    }
+                    continue;
+                }
+
+                Attempt attempt = find(attemptList, future);
+                if (attempt.done) {
+                    // Already timed out
+                    continue;
+                }
+                attempt.done = true;
+                running--;
+                try {
+                    Book book = future.get();
+                    if (book != null) {
+                        return book;
+                    }
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            // Cancel the calls still running, releasing their circuit if they were a trial
+            for (Attempt attempt : attemptList) {
+                attempt.future.cancel(true);
+                attempt.permit.release();
+            }
+        }
+
+        String message = "Book not found with ISBN " + isbn;
+        if (lastError == null && !skipped) {
+            // Every provider answered, remember it
+            notFoundCache.put(notFoundKey, Boolean.TRUE);
+        } else if (lastError == null) {
+            message += ": provider circuit open";
+        } else if (lastError.getMessage() != null) {
+            message += ": " + lastError.getMessage();
+        }
+        throw new BookLookupException(message, lastError);
+    }
+
+    /**
+     * Searches several books by ISBN, with bounded parallelism.
+     * ISBNs not found or in error are absent from the result.
+     * The caller is responsible for the admission of the searches, see UserAdmissionControl.acquire().
+     *
+     * @param isbns ISBN-10 or ISBN-13
+     * @return Books by ISBN-13, not persisted
+     * @throws InterruptedException If interrupted while waiting for the searches
+     */
+    public Map<String, Book> searchBooks(Collection<String> isbns) throws InterruptedException {
+        Map<String, Future<Book>> futureMap = new LinkedHashMap<>();
+        for (String isbn : isbns) {
+            final String isbn13 = IsbnUtil.toIsbn13(isbn);
+            if (isbn13 == null || futureMap.containsKey(isbn13) || notFoundCache.getIfPresent(isbn13) != null) {
+                continue;
+            }
+            futureMap.put(isbn13, bulkExecutor.submit(new Callable<Book>() {
+                @Override
+                public Book call() throws Exception {
+                    return searchBook(isbn13);
+                }
+            }));
+        }
+
+        Map<String, Book> bookMap = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<Book>> entry : futureMap.entrySet()) {
+                try {
+                    bookMap.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(e.getCause().getMessage());
+                    }
+                }
+            }
+        } finally {
+            for (Future<Book> future : futureMap.values()) {
+                future.cancel(true);
+            }
+        }
+        return bookMap;
+    }
+
+    /**
+     * Starts a provider call.
+     *
+     * @param completionService Completion service
+     * @param providerState Provider
+     * @param permit Circuit breaker permit of the call
+     * @param isbn ISBN
+     * @return Attempt
+     */
+    private Attempt start(CompletionService<Book> completionService, final ProviderState providerState,
+            final CircuitBreaker.Permit permit, final String isbn) {
+        long startTime = System.nanoTime();
+        Future<Book> future = completionService.submit(new Callable<Book>() {
+            @Override
+            public Book call() throws Exception {
+                long startTime = System.nanoTime();
+                try {
+                    Book book = providerState.provider.searchBook(isbn);
+                    permit.recordSuccess();
+                    providerState.recordLatency(System.nanoTime() - startTime);
+                    return book;
+                } catch (Exception e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        permit.recordFailure();
+                    }
+                    throw e;
+                }
+            }
+        });
+        return new Attempt(providerState, permit, future,
+                startTime + providerState.getLatencyPercentile(hedgePercentile, providerTimeout),
+                startTime + TimeUnit.MILLISECONDS.toNanos(providerTimeout));
+    }
+
+    /**
+     * Finds the attempt of a future.
+     */
+    private static Attempt find(List<Attempt> attemptList, Future<Book> future) {
+        for (Attempt attempt : attemptList) {
+            if (attempt.future == future) {
+                return attempt;
+            }
+        }
+        throw new IllegalStateException("Unknown future");
+    }
+
+    /**
+     * Returns the circuit state of each provider.
+     *
+     * @return Circuit states, in chain order
+     */
+    public List<CircuitBreaker.State> getCircuitStateList() {
+        List<CircuitBreaker.State> stateList = new ArrayList<>();
+        for (ProviderState providerState : providerList) {
+            stateList.add(providerState.circuitBreaker.getState());
+        }
+        return stateList;
+    }
+
+    /**
+     * Exception thrown when no provider found a book.
+     */
+    public static class BookLookupException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public BookLookupException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Provider with its circuit breaker and recent latencies.
+     */
+    private static class ProviderState {
+        /**
+         * Number of latencies kept.
+         */
+        private static final int SAMPLE_SIZE = 128;
+
+        /**
+         * Minimum number of latencies before hedging on percentile.
+         */
+        private static final int MIN_SAMPLE_SIZE = 16;
+
+        private final BookLookupProvider provider;
+
+        private final CircuitBreaker circuitBreaker;
+
+        /**
+         * Ring buffer of successful call latencies, in nanoseconds.
+         */
+        private final AtomicLongArray latencies = new AtomicLongArray(SAMPLE_SIZE);
+
+        private final AtomicInteger sampleCount = new AtomicInteger();
+
+        private ProviderState(BookLookupProvider provider, CircuitBreaker circuitBreaker) {
+            this.provider = provider;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        private void recordLatency(long latency) {
+            latencies.set(Math.abs(sampleCount.getAndIncrement() % SAMPLE_SIZE), latency);
+        }
+
+        /**
+         * Returns a latency percentile, or half the timeout until enough calls are recorded.
+         *
+         * @param percentile Percentile, between 0 and 1
+         * @param timeout Timeout, in milliseconds
+         * @return Latency, in nanoseconds
+         */
+        private long getLatencyPercentile(double percentile, long timeout) {
+            int count = Math.min(sampleCount.get(), SAMPLE_SIZE);
+            if (count < MIN_SAMPLE_SIZE) {
+                return TimeUnit.MILLISECONDS.toNanos(timeout) / 2;
+            }
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (percentile * count))];
+        }
+    }
+
+    /**
+     * Call in progress on a provider.
+     */
+    private static class Attempt {
+        private final ProviderState providerState;
+
+        private final CircuitBreaker.Permit permit;
+
+        private final Future<Book> future;
+
+        /**
+         * Time after which the next provider is started, from System.nanoTime().
+         */
+        private final long hedgeTime;
+
+        /**
+         * Time after which this call is abandoned, from System.nanoTime().
+         */
+        private final long deadline;
+
+        private boolean done;
+
+        private Attempt(ProviderState providerState, CircuitBreaker.Permit permit, Future<Book> future, long hedgeTime, long deadline) {
+            this.providerState = providerState;
+            this.permit = permit;
+            this.future = future;
+            this.hedgeTime = hedgeTime;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -1,24 +1,36 @@
 package com.sismics.books.rest.resource;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -27,30 +39,63 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.io.IOUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.sismics.books.core.dao.jpa.BookCache;
 import com.sismics.books.core.dao.jpa.BookDao;
+import com.sismics.books.core.dao.jpa.BookIsbnDao;
+import com.sismics.books.core.dao.jpa.IsbnFilter;
+import com.sismics.books.core.dao.jpa.ReadStateBuffer;
+import com.sismics.books.core.dao.jpa.ReadStateBuffer.ReadState;
 import com.sismics.books.core.dao.jpa.TagDao;
+import com.sismics.books.core.dao.jpa.UserBookCountCache;
+import com.sismics.books.core.dao.jpa.UserBookCountCache.Count;
 import com.sismics.books.core.dao.jpa.UserBookDao;
-import com.sismics.books.core.dao.jpa.UserDao;
+import com.sismics.books.core.dao.jpa.UserBookDetailDao;
+import com.sismics.books.core.dao.jpa.UserBookTagDao;
 import com.sismics.books.core.dao.jpa.criteria.UserBookCriteria;
 import com.sismics.books.core.dao.jpa.dto.TagDto;
+import com.sismics.books.core.dao.jpa.dto.UserBookDetailDto;
 import com.sismics.books.core.dao.jpa.dto.UserBookDto;
-import com.sismics.books.core.event.BookImportedEvent;
 import com.sismics.books.core.model.context.AppContext;
 import com.sismics.books.core.model.jpa.Book;
 import com.sismics.books.core.model.jpa.Tag;
-import com.sismics.books.core.model.jpa.User;
 import com.sismics.books.core.model.jpa.UserBook;
-import com.sismics.books.core.util.DirectoryUtil;
+import com.sismics.books.core.service.BookLookupService;
+import com.sismics.books.core.service.BookSuggestIndex;
+import com.sismics.books.core.service.BookSuggestIndex.Suggestion;
+import com.sismics.books.core.service.CoverStores;
+import com.sismics.books.core.service.ImportQueue;
+import com.sismics.books.core.service.ImportQueue.EnqueueResult;
+import com.sismics.books.core.service.LibraryEventBroker;
+import com.sismics.books.core.service.LibraryEventBroker.Subscription;
+import com.sismics.books.core.service.UserAdmissionControl;
+import com.sismics.books.core.service.UserAdmissionControl.Admission;
+import com.sismics.books.core.service.UserBookChangeLog;
+import com.sismics.books.core.service.UserBookChangeLog.ChangeType;
+import com.sismics.books.core.service.UserBookChangeLog.Changes;
+import com.sismics.books.core.util.TransactionHooks;
 import com.sismics.books.core.util.jpa.PaginatedList;
 import com.sismics.books.core.util.jpa.PaginatedLists;
-import com.sismics.books.core.util.jpa.SortCriteria;
+import com.sismics.books.rest.util.ExternalCallExecutor;
+import com.sismics.books.rest.util.IdempotencyStore;
+import com.sismics.books.rest.util.IdempotencyStore.Ticket;
+import com.sismics.books.rest.util.LibraryEventServlet;
+import com.sismics.books.rest.util.Metrics;
+import com.sismics.books.rest.util.ResponseEncoder;
 import com.sismics.rest.exception.ClientException;
 import com.sismics.rest.exception.ForbiddenClientException;
 import com.sismics.rest.exception.ServerException;
@@ -65,37 +110,101 @@ import com.sun.jersey.multipart.FormDataParam;
  */
 @Path("/book")
 public class BookResource extends BaseResource {
+    /**
+     * Maximum number of covers returned by one batch request.
+     */
+    private static final int COVER_BATCH_SIZE = Integer.getInteger("books.cover.batchSize", 100);
+    
+    /**
+     * Retry delay of an import rejected because the queue is full, in seconds.
+     */
+    private static final int IMPORT_RETRY_AFTER = 60;
+    
+    /**
+     * Maximum number of suggestions returned.
+     */
+    private static final int SUGGEST_MAX_LIMIT = 50;
+    
+    /**
+     * Maximum number of user books given by ID to one bulk tag request.
+     */
+    private static final int TAG_BATCH_SIZE = Integer.getInteger("books.tags.batchSize", 1000);
+    
     /**
      * Creates a new book.
      * 
      * @param isbn ISBN Number
+     * @param idempotencyKey Idempotency key, a retry with the same key gets the original response
      * @return Response
      * @throws JSONException
      */
     @PUT
     @Produces(MediaType.APPLICATION_JSON)
     public Response add(
-            @FormParam("isbn") String isbn) throws JSONException {
+            @FormParam("isbn") final String isbn,
+            @HeaderParam("Idempotency-Key") String idempotencyKey) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
         
+        // Replay the response of a previous request with the same key
+        Ticket idempotency = IdempotencyStore.getInstance().begin(principal.getId(), "book_add", idempotencyKey, isbn);
+        if (idempotency != null && idempotency.isReplay()) {
+            return idempotency.replay();
+        }
+        
         // Validate input data
         ValidationUtil.validateRequired(isbn, "isbn");
         
-        // Fetch the book
+        // Fetch the book, in any ISBN form, unless the ISBN filter knows it is not in the catalog
         BookDao bookDao = new BookDao();
-        Book book = bookDao.getByIsbn(isbn);
+        IsbnFilter isbnFilter = IsbnFilter.getInstance();
+        Book book = null;
+        if (isbnFilter == null || isbnFilter.mightContain(Collections.singletonList(isbn))) {
+            book = BookCache.getInstance().getByIsbn(isbn);
+            if (book == null && isbnFilter != null) {
+                isbnFilter.recordFalsePositive();
+            }
+        }
         if (book == null) {
-            // Try to get the book from a public API
-            try {
-                book = AppContext.getInstance().getBookDataService().searchBook(isbn);
-            } catch (Exception e) {
-                throw new ClientException("BookNotFound", e.getCause().getMessage(), e);
+            // Try to get the book from the local ISBN mirror, then from the public APIs
+            book = BookLookupService.getInstance().searchLocal(isbn);
+            if (book == null) {
+                Admission admission = UserAdmissionControl.getInstance().admit(principal.getId());
+                if (!admission.isAdmitted()) {
+                    return tooManyRequests("book_add", admission);
+                }
+                try {
+                    book = ExternalCallExecutor.call("searchBook", new Callable<Book>() {
+                        @Override
+                        public Book call() throws Exception {
+                            return BookLookupService.getInstance().searchBook(isbn);
+                        }
+                    }, admission);
+                } catch (RejectedExecutionException e) {
+                    throw new ServerException("ExternalServiceBusy", "Too many book searches in progress", e);
+                } catch (TimeoutException e) {
+                    throw new ServerException("ExternalServiceTimeout", "Timeout searching the book", e);
+                } catch (Exception e) {
+                    throw new ClientException("BookNotFound", e.getMessage(), e);
+                }
             }
             
-            // Save the new book in database
-            bookDao.create(book);
+            // Save the new book in database, unless added during the search
+            List<String> bookIsbnList = Lists.newArrayList(book.getIsbn10(), book.getIsbn13());
+            Book bookDb = null;
+            if (isbnFilter == null || isbnFilter.mightContain(bookIsbnList)) {
+                bookDb = new BookIsbnDao().getByAnyIsbn(bookIsbnList);
+                if (bookDb == null && isbnFilter != null) {
+                    isbnFilter.recordFalsePositive();
+                }
+            }
+            if (bookDb == null) {
+                bookDao.create(book);
+                cacheAfterCommit(book, isbnFilter);
+            } else {
+                book = bookDb;
+            }
         }
         
         // Create the user book if needed
@@ -107,13 +216,15 @@ public class BookResource extends BaseResource {
             userBook.setBookId(book.getId());
             userBook.setCreateDate(new Date());
             userBookDao.create(userBook);
+            UserBookChangeLog.getInstance().record(principal.getId(), userBook.getId(), ChangeType.ADDED);
+            BookSuggestIndex.getInstance().put(principal.getId(), userBook.getId(), book);
         } else {
             throw new ClientException("BookAlreadyAdded", "Book already added");
         }
         
         JSONObject response = new JSONObject();
         response.put("id", userBook.getId());
-        return Response.ok().entity(response).build();
+        return IdempotencyStore.getInstance().complete(idempotency, response);
     }
     
     /**
@@ -141,6 +252,17 @@ public class BookResource extends BaseResource {
         
         // Delete the user book
         userBookDao.delete(userBook.getId());
+        UserBookChangeLog.getInstance().record(principal.getId(), userBook.getId(), ChangeType.DELETED);
+        BookSuggestIndex.getInstance().remove(principal.getId(), userBook.getId());
+        
+        // An identical import must be able to add the book back
+        final String userId = principal.getId();
+        TransactionHooks.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                ImportQueue.getInstance().forgetHistory(userId);
+            }
+        });
         
         // Always return ok
         JSONObject response = new JSONObject();
@@ -153,6 +275,7 @@ public class BookResource extends BaseResource {
      * 
      * @param title Title
      * @param description Description
+     * @param idempotencyKey Idempotency key, a retry with the same key gets the original response
      * @return Response
      * @throws JSONException
      */
@@ -169,11 +292,19 @@ public class BookResource extends BaseResource {
             @FormParam("page_count") Long pageCount,
             @FormParam("language") String language,
             @FormParam("publish_date") String publishDateStr,
-            @FormParam("tags") List<String> tagList) throws JSONException {
+            @FormParam("tags") List<String> tagList,
+            @HeaderParam("Idempotency-Key") String idempotencyKey) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
         
+        // Replay the response of a previous request with the same key
+        Ticket idempotency = IdempotencyStore.getInstance().begin(principal.getId(), "book_add_manual", idempotencyKey,
+                title, subtitle, author, description, isbn10, isbn13, pageCount, language, publishDateStr, tagList);
+        if (idempotency != null && idempotency.isReplay()) {
+            return idempotency.replay();
+        }
+        
         // Validate input data
         title = ValidationUtil.validateLength(title, "title", 1, 255, false);
         subtitle = ValidationUtil.validateLength(subtitle, "subtitle", 1, 255, true);
@@ -188,12 +319,35 @@ public class BookResource extends BaseResource {
             throw new ClientException("ValidationError", "At least one ISBN number is mandatory");
         }
         
-        // Check if this book is not already in database
+        // Check that all the tags belong to the user, before any write
+        TagDao tagDao = new TagDao();
+        Set<String> tagSet = null;
+        if (tagList != null) {
+            tagSet = new HashSet<>();
+            Set<String> tagIdSet = new HashSet<>();
+            List<Tag> tagDbList = tagDao.getByUserId(principal.getId());
+            for (Tag tagDb : tagDbList) {
+                tagIdSet.add(tagDb.getId());
+            }
+            for (String tagId : tagList) {
+                if (!tagIdSet.contains(tagId)) {
+                    throw new ClientException("TagNotFound", MessageFormat.format("Tag not found: {0}", tagId));
+                }
+                tagSet.add(tagId);
+            }
+        }
+        
+        // Check if this book is not already in database, unless the ISBN filter knows it is not
         BookDao bookDao = new BookDao();
-        Book bookIsbn10 = bookDao.getByIsbn(isbn10);
-        Book bookIsbn13 = bookDao.getByIsbn(isbn13);
-        if (bookIsbn10 != null || bookIsbn13 != null) {
-            throw new ClientException("BookAlreadyAdded", "Book already added");
+        IsbnFilter isbnFilter = IsbnFilter.getInstance();
+        List<String> isbnList = Lists.newArrayList(isbn10, isbn13);
+        if (isbnFilter == null || isbnFilter.mightContain(isbnList)) {
+            if (new BookIsbnDao().getByAnyIsbn(isbnList) != null) {
+                throw new ClientException("BookAlreadyAdded", "Book already added");
+            }
+            if (isbnFilter != null) {
+                isbnFilter.recordFalsePositive();
+            }
         }
         
         // Create the book
@@ -229,6 +383,7 @@ public class BookResource extends BaseResource {
         }
         
         bookDao.create(book);
+        cacheAfterCommit(book, isbnFilter);
         
         // Create the user book
         UserBookDao userBookDao = new UserBookDao();
@@ -239,27 +394,17 @@ public class BookResource extends BaseResource {
         userBookDao.create(userBook);
         
         // Update tags
-        if (tagList != null) {
-            TagDao tagDao = new TagDao();
-            Set<String> tagSet = new HashSet<>();
-            Set<String> tagIdSet = new HashSet<>();
-            List<Tag> tagDbList = tagDao.getByUserId(principal.getId());
-            for (Tag tagDb : tagDbList) {
-                tagIdSet.add(tagDb.getId());
-            }
-            for (String tagId : tagList) {
-                if (!tagIdSet.contains(tagId)) {
-                    throw new ClientException("TagNotFound", MessageFormat.format("Tag not found: {0}", tagId));
-                }
-                tagSet.add(tagId);
-            }
+        if (tagSet != null) {
             tagDao.updateTagList(userBook.getId(), tagSet);
         }
         
+        UserBookChangeLog.getInstance().record(principal.getId(), userBook.getId(), ChangeType.ADDED);
+        BookSuggestIndex.getInstance().put(principal.getId(), userBook.getId(), book);
+        
         // Returns the book ID
         JSONObject response = new JSONObject();
         response.put("id", userBook.getId());
-        return Response.ok().entity(response).build();
+        return IdempotencyStore.getInstance().complete(idempotency, response);
     }
     
     /**
@@ -267,6 +412,7 @@ public class BookResource extends BaseResource {
      * 
      * @param title Title
      * @param description Description
+     * @param ifMatch Version of the book the client has read, from the ETag header
      * @return Response
      * @throws JSONException
      */
@@ -284,7 +430,8 @@ public class BookResource extends BaseResource {
             @FormParam("page_count") Long pageCount,
             @FormParam("language") String language,
             @FormParam("publish_date") String publishDateStr,
-            @FormParam("tags") List<String> tagList) throws JSONException {
+            @FormParam("tags") List<String> tagList,
+            @HeaderParam("If-Match") String ifMatch) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
@@ -299,6 +446,13 @@ public class BookResource extends BaseResource {
         language = ValidationUtil.validateLength(language, "language", 2, 2, true);
         Date publishDate = ValidationUtil.validateDate(publishDateStr, "publish_date", true);
         
+        // Lock the user book and the book first, the version check and the write
+        // must see the same version as a concurrent update
+        UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
+        if (!userBookDetailDao.lockUserBook(userBookId, principal.getId())) {
+            throw new ClientException("BookNotFound", "Book not found with id " + userBookId);
+        }
+        
         // Get the user book
         UserBookDao userBookDao = new UserBookDao();
         BookDao bookDao = new BookDao();
@@ -311,53 +465,80 @@ public class BookResource extends BaseResource {
         Book book = bookDao.getById(userBook.getBookId());
         
         // Check that new ISBN number are not already in database
-        if (!Strings.isNullOrEmpty(isbn10) && book.getIsbn10() != null && !book.getIsbn10().equals(isbn10)) {
-            Book bookIsbn10 = bookDao.getByIsbn(isbn10);
-            if (bookIsbn10 != null) {
-                throw new ClientException("BookAlreadyAdded", "Book already added");
+        List<String> newIsbnList = new ArrayList<>();
+        if (!Strings.isNullOrEmpty(isbn10) && !isbn10.equals(book.getIsbn10())) {
+            newIsbnList.add(isbn10);
+        }
+        if (!Strings.isNullOrEmpty(isbn13) && !isbn13.equals(book.getIsbn13())) {
+            newIsbnList.add(isbn13);
+        }
+        if (!newIsbnList.isEmpty()) {
+            BookIsbnDao bookIsbnDao = new BookIsbnDao();
+            for (Book bookIsbn : bookIsbnDao.getByIsbns(newIsbnList)) {
+                if (!bookIsbn.getId().equals(book.getId())) {
+                    throw new ClientException("BookAlreadyAdded", "Book already added");
+                }
             }
         }
         
-        if (!Strings.isNullOrEmpty(isbn13) && book.getIsbn13() != null && !book.getIsbn13().equals(isbn13)) {
-            Book bookIsbn13 = bookDao.getByIsbn(isbn13);
-            if (bookIsbn13 != null) {
-                throw new ClientException("BookAlreadyAdded", "Book already added");
-            }
+        // Check that the client updates the latest version of the book
+        TagDao tagDao = new TagDao();
+        Set<String> currentTagSet = new TreeSet<>();
+        for (TagDto tagDto : tagDao.getByUserBookId(userBookId)) {
+            currentTagSet.add(tagDto.getId());
+        }
+        if (ifMatch != null && !ifMatch.replaceFirst("^W/", "").replace("\"", "").equals(getVersion(book, currentTagSet))) {
+            JSONObject response = new JSONObject();
+            response.put("type", "BookModified");
+            response.put("message", "The book has been modified since it was read");
+            return Response.status(Status.CONFLICT).entity(response).build();
         }
         
-        // Update the book
-        if (title != null) {
+        // Update the changed fields only
+        final List<String> previousIsbnList = Lists.newArrayList(book.getIsbn10(), book.getIsbn13());
+        boolean bookChanged = false;
+        if (title != null && !title.equals(book.getTitle())) {
             book.setTitle(title);
+            bookChanged = true;
         }
-        if (subtitle != null) {
+        if (subtitle != null && !subtitle.equals(book.getSubtitle())) {
             book.setSubtitle(subtitle);
+            bookChanged = true;
         }
-        if (author != null) {
+        if (author != null && !author.equals(book.getAuthor())) {
             book.setAuthor(author);
+            bookChanged = true;
         }
-        if (description != null) {
+        if (description != null && !description.equals(book.getDescription())) {
             book.setDescription(description);
+            bookChanged = true;
         }
-        if (isbn10 != null) {
+        if (isbn10 != null && !isbn10.equals(book.getIsbn10())) {
             book.setIsbn10(isbn10);
+            bookChanged = true;
         }
-        if (isbn13 != null) {
+        if (isbn13 != null && !isbn13.equals(book.getIsbn13())) {
             book.setIsbn13(isbn13);
+            bookChanged = true;
         }
-        if (pageCount != null) {
+        if (pageCount != null && !pageCount.equals(book.getPageCount())) {
             book.setPageCount(pageCount);
+            bookChanged = true;
         }
-        if (language != null) {
+        if (language != null && !language.equals(book.getLanguage())) {
             book.setLanguage(language);
+            bookChanged = true;
         }
-        if (publishDate != null) {
+        if (publishDate != null && !publishDate.equals(book.getPublishDate())) {
             book.setPublishDate(publishDate);
+            bookChanged = true;
         }
         
-        // Update tags
+        // Update tags, only the added and removed ones
+        Set<String> tagSet = currentTagSet;
+        boolean tagChanged = false;
         if (tagList != null) {
-            TagDao tagDao = new TagDao();
-            Set<String> tagSet = new HashSet<>();
+            tagSet = new TreeSet<>();
             Set<String> tagIdSet = new HashSet<>();
             List<Tag> tagDbList = tagDao.getByUserId(principal.getId());
             for (Tag tagDb : tagDbList) {
@@ -369,12 +550,153 @@ public class BookResource extends BaseResource {
                 }
                 tagSet.add(tagId);
             }
-            tagDao.updateTagList(userBookId, tagSet);
+            
+            Set<String> addedTagSet = Sets.difference(tagSet, currentTagSet);
+            Set<String> removedTagSet = Sets.difference(currentTagSet, tagSet);
+            if (!addedTagSet.isEmpty() || !removedTagSet.isEmpty()) {
+                UserBookTagDao userBookTagDao = new UserBookTagDao();
+                userBookTagDao.removeTags(userBookId, removedTagSet);
+                userBookTagDao.addTags(userBookId, addedTagSet);
+                tagChanged = true;
+            }
+        }
+        if (bookChanged) {
+            // Refresh the in-memory copies of the book once the change is committed
+            final Book changedBook = book;
+            TransactionHooks.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    BookCache.getInstance().invalidate(changedBook.getId(), previousIsbnList);
+                    BookCache.getInstance().invalidate(changedBook);
+                    BookSuggestIndex.getInstance().update(changedBook);
+                    IsbnFilter isbnFilter = IsbnFilter.getInstance();
+                    if (isbnFilter != null) {
+                        isbnFilter.put(changedBook);
+                    }
+                }
+            });
+        }
+        if (bookChanged || tagChanged) {
+            UserBookChangeLog.getInstance().record(principal.getId(), userBookId, ChangeType.UPDATED);
         }
         
-        // Returns the book ID
+        // Returns the book ID and its new version
         JSONObject response = new JSONObject();
         response.put("id", userBookId);
+        return Response.ok().entity(response).tag(getVersion(book, tagSet)).build();
+    }
+    
+    /**
+     * Adds and removes tags on several books at once.
+     * The books are given by ID, or by the same filters as the list,
+     * at most books.tags.batchSize books either way.
+     * 
+     * @param userBookIdList User book IDs
+     * @param search Search filter, if no user book ID is given
+     * @param read Read filter, if no user book ID is given
+     * @param tagName Tag name filter, if no user book ID is given
+     * @param addTagList IDs of the tags to add
+     * @param removeTagList IDs of the tags to remove
+     * @return Response
+     * @throws JSONException
+     */
+    @POST
+    @Path("tags")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response updateTags(
+            @FormParam("id") List<String> userBookIdList,
+            @FormParam("search") String search,
+            @FormParam("read") Boolean read,
+            @FormParam("tag") String tagName,
+            @FormParam("add") List<String> addTagList,
+            @FormParam("remove") List<String> removeTagList) throws JSONException {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        
+        // Validate input data
+        Set<String> addTagSet = addTagList == null ? new HashSet<String>() : new HashSet<>(addTagList);
+        Set<String> removeTagSet = removeTagList == null ? new HashSet<String>() : new HashSet<>(removeTagList);
+        if (addTagSet.isEmpty() && removeTagSet.isEmpty()) {
+            throw new ClientException("ValidationError", "No tag to add or remove");
+        }
+        if (!Sets.intersection(addTagSet, removeTagSet).isEmpty()) {
+            throw new ClientException("ValidationError", "A tag cannot be added and removed at once");
+        }
+        boolean filtered = !Strings.isNullOrEmpty(search) || read != null || !Strings.isNullOrEmpty(tagName);
+        if ((userBookIdList == null || userBookIdList.isEmpty()) && !filtered) {
+            throw new ClientException("ValidationError", "No book ID nor filter given");
+        }
+        
+        // Check that all the tags belong to the user, in one query
+        TagDao tagDao = new TagDao();
+        Set<String> tagIdSet = new HashSet<>();
+        for (Tag tagDb : tagDao.getByUserId(principal.getId())) {
+            tagIdSet.add(tagDb.getId());
+        }
+        for (String tagId : Sets.union(addTagSet, removeTagSet)) {
+            if (!tagIdSet.contains(tagId)) {
+                throw new ClientException("TagNotFound", MessageFormat.format("Tag not found: {0}", tagId));
+            }
+        }
+        
+        // Get the user books, all owned by the user
+        UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
+        Set<String> userBookIdSet;
+        if (userBookIdList != null && !userBookIdList.isEmpty()) {
+            userBookIdSet = new LinkedHashSet<>(userBookIdList);
+            if (userBookIdSet.size() > TAG_BATCH_SIZE) {
+                throw new ClientException("ValidationError", "At most " + TAG_BATCH_SIZE + " books can be tagged at once");
+            }
+            Set<String> ownedIdSet = userBookDetailDao.getBookIdMap(userBookIdSet, principal.getId()).keySet();
+            for (String userBookId : userBookIdSet) {
+                if (!ownedIdSet.contains(userBookId)) {
+                    throw new ClientException("BookNotFound", "Book not found with id " + userBookId);
+                }
+            }
+        } else {
+            UserBookCriteria criteria = new UserBookCriteria();
+            criteria.setSearch(search);
+            criteria.setRead(read);
+            criteria.setUserId(principal.getId());
+            if (!Strings.isNullOrEmpty(tagName)) {
+                Tag tag = tagDao.getByName(principal.getId(), tagName);
+                if (tag == null) {
+                    throw new ClientException("TagNotFound", MessageFormat.format("Tag not found: {0}", tagName));
+                }
+                criteria.setTagIdList(Lists.newArrayList(tag.getId()));
+            }
+            
+            // Write the pending read states of the user first, they can change the filter
+            ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+            if (readStateBuffer != null && read != null) {
+                readStateBuffer.flushUser(principal.getId());
+            }
+            
+            // Fetch one more book than allowed, to know if the filter matches too many
+            userBookIdSet = new LinkedHashSet<>(userBookDetailDao.findIdList(criteria, TAG_BATCH_SIZE + 1));
+            if (userBookIdSet.size() > TAG_BATCH_SIZE) {
+                throw new ClientException("ValidationError", "At most " + TAG_BATCH_SIZE + " books can be tagged at once, narrow the filter");
+            }
+        }
+        
+        // Update the tags of all the user books with set-based statements
+        UserBookTagDao userBookTagDao = new UserBookTagDao();
+        Set<String> changedIdSet = new TreeSet<>();
+        if (!removeTagSet.isEmpty()) {
+            changedIdSet.addAll(userBookTagDao.removeTags(userBookIdSet, removeTagSet));
+        }
+        if (!addTagSet.isEmpty()) {
+            changedIdSet.addAll(userBookTagDao.addTags(userBookIdSet, addTagSet));
+        }
+        for (String userBookId : changedIdSet) {
+            UserBookChangeLog.getInstance().record(principal.getId(), userBookId, ChangeType.UPDATED);
+        }
+        
+        // Returns the IDs of the books changed
+        JSONObject response = new JSONObject();
+        response.put("status", "ok");
+        response.put("updated", new ArrayList<>(changedIdSet));
         return Response.ok().entity(response).build();
     }
     
@@ -387,57 +709,203 @@ public class BookResource extends BaseResource {
      */
     @GET
     @Path("{id: [a-z0-9\\-]+}")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({ MediaType.APPLICATION_JSON, ResponseEncoder.APPLICATION_CBOR })
     public Response get(
             @PathParam("id") String userBookId) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
         
-        // Fetch the user book
-        UserBookDao userBookDao = new UserBookDao();
-        UserBook userBook = userBookDao.getUserBook(userBookId, principal.getId());
+        // Fetch the user book, the book and its tags
+        UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
+        UserBookDetailDto userBook = userBookDetailDao.getUserBookDetail(userBookId, principal.getId());
         if (userBook == null) {
             throw new ClientException("BookNotFound", "Book not found with id " + userBookId);
         }
         
-        // Fetch the book
-        BookDao bookDao = new BookDao();
-        Book bookDb = bookDao.getById(userBook.getBookId());
+        // Apply the read state not written yet
+        ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+        ReadState readState = readStateBuffer == null ? null : readStateBuffer.get(userBook.getId());
+        if (readState != null) {
+            userBook.setReadDate(readState.getReadDate());
+        }
         
         // Return book data
-        JSONObject book = new JSONObject();
-        book.put("id", userBook.getId());
-        book.put("title", bookDb.getTitle());
-        book.put("subtitle", bookDb.getSubtitle());
-        book.put("author", bookDb.getAuthor());
-        book.put("page_count", bookDb.getPageCount());
-        book.put("description", bookDb.getDescription());
-        book.put("isbn10", bookDb.getIsbn10());
-        book.put("isbn13", bookDb.getIsbn13());
-        book.put("language", bookDb.getLanguage());
-        if (bookDb.getPublishDate() != null) {
-            book.put("publish_date", bookDb.getPublishDate().getTime());
+        JSONObject book = toJson(userBook);
+        return ResponseEncoder.ok(request, book).tag(getVersion(userBook)).build();
+    }
+    
+    /**
+     * Returns the books of the user with a title or author word starting with a prefix,
+     * for type-ahead search.
+     * 
+     * @param query Prefix
+     * @param limit Maximum number of suggestions
+     * @return Response
+     * @throws JSONException
+     */
+    @GET
+    @Path("suggest")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response suggest(
+            @QueryParam("q") String query,
+            @QueryParam("limit") Integer limit) throws JSONException {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
         }
-        book.put("create_date", userBook.getCreateDate().getTime());
-        if (userBook.getReadDate() != null) {
-            book.put("read_date", userBook.getReadDate().getTime());
+        
+        List<JSONObject> books = new ArrayList<>();
+        if (!Strings.isNullOrEmpty(query)) {
+            int suggestLimit = limit == null ? 10 : Math.max(1, Math.min(limit, SUGGEST_MAX_LIMIT));
+            for (Suggestion suggestion : BookSuggestIndex.getInstance().suggest(principal.getId(), query, suggestLimit)) {
+                JSONObject book = new JSONObject();
+                book.put("id", suggestion.getUserBookId());
+                book.put("title", suggestion.getTitle());
+                book.put("author", suggestion.getAuthor());
+                books.add(book);
+            }
         }
         
-        // Add tags
-        TagDao tagDao = new TagDao();
-        List<TagDto> tagDtoList = tagDao.getByUserBookId(userBookId);
-        List<JSONObject> tags = new ArrayList<>();
-        for (TagDto tagDto : tagDtoList) {
-            JSONObject tag = new JSONObject();
-            tag.put("id", tagDto.getId());
-            tag.put("name", tagDto.getName());
-            tag.put("color", tagDto.getColor());
-            tags.add(tag);
+        JSONObject response = new JSONObject();
+        response.put("books", books);
+        return Response.ok().entity(response).build();
+    }
+    
+    /**
+     * Returns the user books changed since a sync token.
+     * Without a token, or with a token too old, the response is a reset: the client
+     * must download the full library, then sync from the returned token.
+     * 
+     * @param token Sync token
+     * @return Response
+     * @throws JSONException
+     */
+    @GET
+    @Path("changes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response changes(
+            @QueryParam("since") String token) throws JSONException {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
         }
-        book.put("tags", tags);
         
-        return Response.ok().entity(book).build();
+        Changes changes = UserBookChangeLog.getInstance().getChanges(principal.getId(), token);
+        List<String> updatedIdList = new ArrayList<>();
+        Set<String> deletedIdSet = new LinkedHashSet<>();
+        for (Map.Entry<String, ChangeType> entry : changes.getChangeMap().entrySet()) {
+            if (entry.getValue() == ChangeType.DELETED) {
+                deletedIdSet.add(entry.getKey());
+            } else {
+                updatedIdList.add(entry.getKey());
+            }
+        }
+        
+        // Fetch all the updated user books in one query. The missing ones are not committed,
+        // or were deleted since and are reported by their own deletion
+        List<JSONObject> books = new ArrayList<>();
+        if (!updatedIdList.isEmpty()) {
+            UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
+            ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+            for (UserBookDetailDto userBook : userBookDetailDao.getUserBookDetailList(updatedIdList, principal.getId())) {
+                ReadState readState = readStateBuffer == null ? null : readStateBuffer.get(userBook.getId());
+                if (readState != null) {
+                    userBook.setReadDate(readState.getReadDate());
+                }
+                books.add(toJson(userBook));
+            }
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("reset", changes.isReset());
+        response.put("token", changes.getToken());
+        response.put("books", books);
+        response.put("deleted", new ArrayList<>(deletedIdSet));
+        return Response.ok().entity(response).build();
+    }
+    
+    /**
+     * Subscribes to the library events of the user, and redirects to their stream,
+     * in server-sent events format.
+     * The stream is written asynchronously by LibraryEventServlet, without holding
+     * a container thread or a database connection.
+     * 
+     * @return Response
+     * @throws JSONException
+     */
+    @GET
+    @Path("events")
+    @Produces("text/event-stream")
+    public Response events() throws JSONException {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        
+        LibraryEventBroker eventBroker = LibraryEventBroker.getInstance();
+        Subscription subscription = eventBroker.subscribe(principal.getId());
+        if (subscription == null) {
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", LibraryEventServlet.HEARTBEAT / 1000)
+                    .build();
+        }
+        
+        // The events published until the stream claims the subscription are buffered
+        String ticket = eventBroker.hold(subscription);
+        return Response.temporaryRedirect(URI.create(request.getContextPath() + LibraryEventServlet.PATH + "?ticket=" + ticket))
+                .header("Cache-Control", "no-cache")
+                .build();
+    }
+    
+    /**
+     * Returns the covers of several books in one response, as a JSON object of
+     * base64 covers by user book ID. Books without a cover are mapped to null,
+     * books whose cover cannot be read to an error object, and books not found are absent.
+     * Each cover is read and encoded before being written, so that an error on one cover
+     * does not truncate the response. The covers are never buffered together.
+     * 
+     * @param userBookIdList User book IDs
+     * @return Response
+     * @throws JSONException
+     */
+    @GET
+    @Path("covers")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response covers(
+            @QueryParam("id") List<String> userBookIdList) throws JSONException {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        
+        Set<String> userBookIdSet = new LinkedHashSet<>(userBookIdList);
+        if (userBookIdSet.size() > COVER_BATCH_SIZE) {
+            throw new ClientException("ValidationError", "At most " + COVER_BATCH_SIZE + " covers can be requested at once");
+        }
+        
+        // Get all the book IDs in one query
+        UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
+        final Map<String, String> bookIdMap = userBookDetailDao.getBookIdMap(userBookIdSet, principal.getId());
+        
+        StreamingOutput streamingOutput = new StreamingOutput() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+                Writer writer = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                writer.write('{');
+                boolean first = true;
+                for (Map.Entry<String, String> entry : bookIdMap.entrySet()) {
+                    if (!first) {
+                        writer.write(',');
+                    }
+                    first = false;
+                    writer.write('"' + entry.getKey() + "\":");
+                    writer.write(readCover(entry.getValue()));
+                }
+                writer.write('}');
+                writer.flush();
+            }
+        };
+        
+        return Response.ok(streamingOutput)
+                .header("Expires", new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z").format(new Date().getTime() + 3600000))
+                .build();
     }
     
     /**
@@ -455,19 +923,21 @@ public class BookResource extends BaseResource {
         // Get the user book
         UserBookDao userBookDao = new UserBookDao();
         UserBook userBook = userBookDao.getUserBook(userBookId);
+        if (userBook == null) {
+            throw new ClientException("BookNotFound", "Book not found with id " + userBookId);
+        }
         
         // Get the cover image
-        File file = Paths.get(DirectoryUtil.getBookDirectory().getPath(), userBook.getBookId()).toFile();
         InputStream inputStream = null;
         try {
-            if (file.exists()) {
-                inputStream = new FileInputStream(file);
-            } else {
-                inputStream = new FileInputStream(new File(getClass().getResource("/dummy.png").getFile()));
-            }
-        } catch (FileNotFoundException e) {
+            inputStream = CoverStores.getInstance().open(userBook.getBookId());
+        } catch (IOException e) {
             throw new ServerException("FileNotFound", "Cover file not found", e);
         }
+        if (inputStream == null) {
+            // Read the placeholder from the classpath, it may be packaged inside a JAR
+            inputStream = getClass().getResourceAsStream("/dummy.png");
+        }
 
         return Response.ok(inputStream)
                 .header("Content-Type", "image/jpeg")
@@ -487,7 +957,7 @@ public class BookResource extends BaseResource {
     @Produces(MediaType.APPLICATION_JSON)
     public Response updateCover(
             @PathParam("id") String userBookId,
-            @FormParam("url") String imageUrl) throws JSONException {
+            @FormParam("url") final String imageUrl) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
@@ -500,15 +970,30 @@ public class BookResource extends BaseResource {
         }
         
         // Get the book
-        BookDao bookDao = new BookDao();
-        Book book = bookDao.getById(userBook.getBookId());
+        final Book book = BookCache.getInstance().getById(userBook.getBookId());
 
         // Download the new cover
+        Admission admission = UserAdmissionControl.getInstance().admit(principal.getId());
+        if (!admission.isAdmitted()) {
+            return tooManyRequests("book_update_cover", admission);
+        }
         try {
-            AppContext.getInstance().getBookDataService().downloadThumbnail(book, imageUrl);
+            ExternalCallExecutor.call("downloadThumbnail", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    AppContext.getInstance().getBookDataService().downloadThumbnail(book, imageUrl);
+                    CoverStores.getInstance().storeLegacy(book.getId());
+                    return null;
+                }
+            }, admission);
+        } catch (RejectedExecutionException e) {
+            throw new ServerException("ExternalServiceBusy", "Too many cover downloads in progress", e);
+        } catch (TimeoutException e) {
+            throw new ServerException("ExternalServiceTimeout", "Timeout downloading the cover image", e);
         } catch (Exception e) {
             throw new ClientException("DownloadCoverError", "Error downloading the cover image");
         }
+        UserBookChangeLog.getInstance().record(principal.getId(), userBookId, ChangeType.UPDATED);
         
         // Always return ok
         JSONObject response = new JSONObject();
@@ -521,12 +1006,13 @@ public class BookResource extends BaseResource {
      * 
      * @param limit Page limit
      * @param offset Page offset
+     * @param count False to skip the total count, when loading more books
      * @return Response
      * @throws JSONException
      */
     @GET
     @Path("list")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({ MediaType.APPLICATION_JSON, ResponseEncoder.APPLICATION_CBOR })
     public Response list(
             @QueryParam("limit") Integer limit,
             @QueryParam("offset") Integer offset,
@@ -534,7 +1020,8 @@ public class BookResource extends BaseResource {
             @QueryParam("asc") Boolean asc,
             @QueryParam("search") String search,
             @QueryParam("read") Boolean read,
-            @QueryParam("tag") String tagName) throws JSONException {
+            @QueryParam("tag") String tagName,
+            @QueryParam("count") Boolean count) throws JSONException {
         if (!authenticate()) {
             throw new ForbiddenClientException();
         }
@@ -542,10 +1029,15 @@ public class BookResource extends BaseResource {
         JSONObject response = new JSONObject();
         List<JSONObject> books = new ArrayList<>();
         
-        UserBookDao userBookDao = new UserBookDao();
+        // Write the pending read states of the user first, they can change the filter, sort and count
+        ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+        if (readStateBuffer != null) {
+            readStateBuffer.flushUser(principal.getId());
+        }
+        
+        UserBookDetailDao userBookDetailDao = new UserBookDetailDao();
         TagDao tagDao = new TagDao();
         PaginatedList<UserBookDto> paginatedList = PaginatedLists.create(limit, offset);
-        SortCriteria sortCriteria = new SortCriteria(sortColumn, asc);
         UserBookCriteria criteria = new UserBookCriteria();
         criteria.setSearch(search);
         criteria.setRead(read);
@@ -556,13 +1048,15 @@ public class BookResource extends BaseResource {
                 criteria.setTagIdList(Lists.newArrayList(tag.getId()));
             }
         }
+        List<UserBookDto> userBookDtoList;
         try {
-            userBookDao.findByCriteria(paginatedList, criteria, sortCriteria);
+            userBookDtoList = userBookDetailDao.findPage(criteria, sortColumn, asc,
+                    paginatedList.getOffset(), paginatedList.getLimit());
         } catch (Exception e) {
             throw new ServerException("SearchError", "Error searching in books", e);
         }
 
-        for (UserBookDto userBookDto : paginatedList.getResultList()) {
+        for (UserBookDto userBookDto : userBookDtoList) {
             JSONObject book = new JSONObject();
             book.put("id", userBookDto.getId());
             book.put("title", userBookDto.getTitle());
@@ -587,10 +1081,29 @@ public class BookResource extends BaseResource {
             
             books.add(book);
         }
-        response.put("total", paginatedList.getResultCount());
+        
+        // Count the books, unless the page is the last one or the count is cached
+        if (count == null || count) {
+            UserBookCountCache countCache = UserBookCountCache.getInstance();
+            Count total = countCache.get(criteria);
+            if (total == null) {
+                long generation = countCache.getGeneration(principal.getId());
+                int totalCount;
+                if (userBookDtoList.size() < paginatedList.getLimit() && (!userBookDtoList.isEmpty() || paginatedList.getOffset() == 0)) {
+                    totalCount = paginatedList.getOffset() + userBookDtoList.size();
+                } else {
+                    totalCount = userBookDetailDao.count(criteria);
+                }
+                total = countCache.put(criteria, generation, totalCount);
+            }
+            response.put("total", total.getValue());
+            if (total.isApproximate()) {
+                response.put("total_approximate", true);
+            }
+        }
         response.put("books", books);
         
-        return Response.ok().entity(response).build();
+        return ResponseEncoder.ok(request, response).build();
     }
     
     /**
@@ -612,20 +1125,35 @@ public class BookResource extends BaseResource {
         // Validate input data
         ValidationUtil.validateRequired(fileBodyPart, "file");
 
-        UserDao userDao = new UserDao();
-        User user = userDao.getById(principal.getId());
-        
         InputStream in = fileBodyPart.getValueAs(InputStream.class);
         File importFile = null;
         try {
-            // Copy the incoming stream content into a temporary file
+            // Copy the incoming stream content into a temporary file, hashing it on the way
             importFile = File.createTempFile("books_import", null);
-            IOUtils.copy(in, new FileOutputStream(importFile));
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            try (FileOutputStream out = new FileOutputStream(importFile)) {
+                IOUtils.copy(new DigestInputStream(in, messageDigest), out);
+            }
+            String hash = BaseEncoding.base16().lowerCase().encode(messageDigest.digest());
             
-            BookImportedEvent event = new BookImportedEvent();
-            event.setUser(user);
-            event.setImportFile(importFile);
-            AppContext.getInstance().getImportEventBus().post(event);
+            // Queue the import, or reject it if the queue is full
+            EnqueueResult result = ImportQueue.getInstance().enqueue(principal.getId(), importFile, hash);
+            if (result == EnqueueResult.FULL) {
+                JSONObject response = new JSONObject();
+                response.put("type", "ImportQueueFull");
+                response.put("message", "Too many imports in progress");
+                return Response.status(Status.SERVICE_UNAVAILABLE)
+                        .header("Retry-After", IMPORT_RETRY_AFTER)
+                        .entity(response)
+                        .build();
+            }
+            if (result == EnqueueResult.DUPLICATE) {
+                // Already imported or being imported
+                JSONObject response = new JSONObject();
+                response.put("status", "ok");
+                response.put("duplicate", true);
+                return Response.ok().entity(response).build();
+            }
             
             // Always return ok
             JSONObject response = new JSONObject();
@@ -664,13 +1192,160 @@ public class BookResource extends BaseResource {
         // Get the user book
         UserBookDao userBookDao = new UserBookDao();
         UserBook userBook = userBookDao.getUserBook(userBookId, principal.getId());
+        if (userBook == null) {
+            throw new ClientException("BookNotFound", "Book not found with id " + userBookId);
+        }
         
-        // Update the read date
-        userBook.setReadDate(read ? new Date() : null);
+        // Update the read date, now or in the next write-behind flush
+        ReadStateBuffer readStateBuffer = ReadStateBuffer.getInstance();
+        if (readStateBuffer == null) {
+            userBook.setReadDate(read ? new Date() : null);
+        } else {
+            readStateBuffer.put(principal.getId(), userBookId, read ? new Date() : null);
+        }
+        UserBookChangeLog.getInstance().record(principal.getId(), userBookId, ChangeType.READ);
         
         // Always return ok
         JSONObject response = new JSONObject();
         response.put("status", "ok");
         return Response.ok().entity(response).build();
     }
+    
+    /**
+     * Adds a new book to the book cache and the ISBN filter, once it is committed.
+     * 
+     * @param book Book
+     * @param isbnFilter ISBN filter, may be null
+     */
+    private static void cacheAfterCommit(final Book book, final IsbnFilter isbnFilter) {
+        TransactionHooks.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                BookCache.getInstance().put(book);
+                if (isbnFilter != null) {
+                    isbnFilter.put(book);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Returns a rejection of the admission control.
+     * 
+     * @param operation Rejected operation
+     * @param admission Admission
+     * @return Response
+     * @throws JSONException
+     */
+    private static Response tooManyRequests(String operation, Admission admission) throws JSONException {
+        Metrics.increment("books_admission_rejected_total", Metrics.labels("operation", operation));
+        JSONObject response = new JSONObject();
+        response.put("type", "TooManyRequests");
+        response.put("message", "Too many book lookups, retry in " + admission.getRetryAfter() + " seconds");
+        return Response.status(429)
+                .header("Retry-After", admission.getRetryAfter())
+                .entity(response)
+                .build();
+    }
+    
+    /**
+     * Converts a user book detail to JSON.
+     * 
+     * @param userBook User book detail
+     * @return JSON book
+     * @throws JSONException
+     */
+    private static JSONObject toJson(UserBookDetailDto userBook) throws JSONException {
+        JSONObject book = new JSONObject();
+        book.put("id", userBook.getId());
+        book.put("title", userBook.getTitle());
+        book.put("subtitle", userBook.getSubtitle());
+        book.put("author", userBook.getAuthor());
+        book.put("page_count", userBook.getPageCount());
+        book.put("description", userBook.getDescription());
+        book.put("isbn10", userBook.getIsbn10());
+        book.put("isbn13", userBook.getIsbn13());
+        book.put("language", userBook.getLanguage());
+        if (userBook.getPublishDate() != null) {
+            book.put("publish_date", userBook.getPublishDate().getTime());
+        }
+        book.put("create_date", userBook.getCreateDate().getTime());
+        if (userBook.getReadDate() != null) {
+            book.put("read_date", userBook.getReadDate().getTime());
+        }
+        
+        // Add tags
+        List<JSONObject> tags = new ArrayList<>();
+        for (TagDto tagDto : userBook.getTagList()) {
+            JSONObject tag = new JSONObject();
+            tag.put("id", tagDto.getId());
+            tag.put("name", tagDto.getName());
+            tag.put("color", tagDto.getColor());
+            tags.add(tag);
+        }
+        book.put("tags", tags);
+        return book;
+    }
+    
+    /**
+     * Returns the version of a book and its tags, used as entity tag.
+     * 
+     * @param book Book
+     * @param tagIdSet Tag IDs of the user book
+     * @return Version
+     */
+    private static String getVersion(Book book, Set<String> tagIdSet) {
+        return hashVersion(book.getTitle(), book.getSubtitle(), book.getAuthor(), book.getDescription(),
+                book.getIsbn10(), book.getIsbn13(), book.getPageCount(), book.getLanguage(), book.getPublishDate(),
+                new TreeSet<>(tagIdSet));
+    }
+    
+    /**
+     * Returns the version of a user book detail, used as entity tag.
+     * 
+     * @param userBook User book detail
+     * @return Version
+     */
+    private static String getVersion(UserBookDetailDto userBook) {
+        Set<String> tagIdSet = new TreeSet<>();
+        for (TagDto tagDto : userBook.getTagList()) {
+            tagIdSet.add(tagDto.getId());
+        }
+        return hashVersion(userBook.getTitle(), userBook.getSubtitle(), userBook.getAuthor(), userBook.getDescription(),
+                userBook.getIsbn10(), userBook.getIsbn13(), userBook.getPageCount(), userBook.getLanguage(), userBook.getPublishDate(),
+                tagIdSet);
+    }
+    
+    /**
+     * Hashes a list of values.
+     * 
+     * @param values Values
+     * @return Hash
+     */
+    private static String hashVersion(Object... values) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Object value : values) {
+            hasher.putString(value instanceof Date ? Long.toString(((Date) value).getTime()) : String.valueOf(value), Charsets.UTF_8);
+            hasher.putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+    
+    /**
+     * Reads a cover and encodes it as a JSON value: a base64 string, null without cover,
+     * or an error object if the cover cannot be read.
+     * 
+     * @param bookId Book ID
+     * @return JSON value
+     */
+    private static String readCover(String bookId) {
+        try (InputStream inputStream = CoverStores.getInstance().open(bookId)) {
+            if (inputStream == null) {
+                return "null";
+            }
+            return '"' + BaseEncoding.base64().encode(ByteStreams.toByteArray(inputStream)) + '"';
+        } catch (IOException | RuntimeException e) {
+            return "{\"error\":\"CoverUnreadable\"}";
+        }
+    }
 }
@@ -0,0 +1,377 @@
+package com.sismics.books.core.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.sismics.books.core.dao.jpa.UserBookDetailDao;
+import com.sismics.books.core.dao.jpa.dto.UserBookDetailDto;
+import com.sismics.books.core.model.jpa.Book;
+
+/**
+ * Per-user index of the book titles and authors, for type-ahead suggestions.
+ *
+ * Each user index is a sorted array of normalized terms, one for each word of a title or author
+ * up to its end, searched by prefix with a binary search. An index is loaded from the database
+ * on the first suggestion, kept up to date by merging the terms of each changed book, and evicted
+ * when the user is idle or when it reaches its maximum age, which bounds the staleness from
+ * changes made elsewhere.
+ *
+ * @author agent
+ */
+public class BookSuggestIndex {
+    /**
+     * Maximum number of words indexed in a title or author.
+     */
+    private static final int MAX_WORDS = 16;
+
+    /**
+     * Combining marks, removed after decomposition.
+     */
+    private static final Pattern MARK_PATTERN = Pattern.compile("\\p{M}+");
+
+    /**
+     * Characters separating words.
+     */
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    /**
+     * Singleton.
+     */
+    private static final BookSuggestIndex instance = new BookSuggestIndex(
+            Long.getLong("books.suggest.maxUsers", 10000L),
+            Long.getLong("books.suggest.idleTime", 30L * 60 * 1000),
+            Long.getLong("books.suggest.maxAge", 10L * 60 * 1000));
+
+    /**
+     * User indexes by user ID.
+     */
+    private final LoadingCache<String, UserIndex> cache;
+
+    /**
+     * Constructor of BookSuggestIndex.
+     *
+     * @param maxUsers Maximum number of user indexes in memory
+     * @param idleTime Time after which the index of an idle user is evicted, in milliseconds
+     * @param maxAge Time after which an index is loaded again, in milliseconds
+     */
+    public BookSuggestIndex(long maxUsers, long idleTime, long maxAge) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(idleTime, TimeUnit.MILLISECONDS)
+                .expireAfterWrite(maxAge, TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<String, UserIndex>() {
+                    @Override
+                    public UserIndex load(String userId) {
+                        UserIndex userIndex = new UserIndex();
+                        userIndex.addAll(new UserBookDetailDao().getUserBookTitleList(userId));
+                        return userIndex;
+                    }
+                });
+    }
+
+    /**
+     * Returns the suggest index.
+     *
+     * @return Suggest index
+     */
+    public static BookSuggestIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the books of a user matching a prefix, loading the user index if needed.
+     * Must be called in a transaction.
+     *
+     * @param userId User ID
+     * @param prefix Prefix of a word of the title or author
+     * @param limit Maximum number of suggestions
+     * @return Suggestions, in term order
+     */
+    public List<Suggestion> suggest(String userId, String prefix, int limit) {
+        String term = normalize(prefix);
+        if (term.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return cache.getUnchecked(userId).suggest(term, limit);
+    }
+
+    /**
+     * Adds or replaces a book of a user, if the user index is in memory.
+     *
+     * @param userId User ID
+     * @param userBookId User book ID
+     * @param book Book
+     */
+    public void put(String userId, String userBookId, Book book) {
+        UserIndex userIndex = cache.getIfPresent(userId);
+        if (userIndex != null) {
+            userIndex.put(new Suggestion(userBookId, book.getId(), book.getTitle(), book.getAuthor()));
+        }
+    }
+
+    /**
+     * Updates the title and author of a book, in all the user indexes in memory.
+     *
+     * @param book Book
+     */
+    public void update(Book book) {
+        for (UserIndex userIndex : cache.asMap().values()) {
+            userIndex.update(book);
+        }
+    }
+
+    /**
+     * Removes a book of a user, if the user index is in memory.
+     *
+     * @param userId User ID
+     * @param userBookId User book ID
+     */
+    public void remove(String userId, String userBookId) {
+        UserIndex userIndex = cache.getIfPresent(userId);
+        if (userIndex != null) {
+            userIndex.remove(userBookId);
+        }
+    }
+
+    /**
+     * Drops the index of a user, after changes too large to apply one by one.
+     *
+     * @param userId User ID
+     */
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    /**
+     * Normalizes a text: no accents, lower case, words separated by one space.
+     *
+     * @param text Text
+     * @return Normalized text
+     */
+    private static String normalize(String text) {
+        String normalized = Normalizer.normalize(Strings.nullToEmpty(text), Normalizer.Form.NFD);
+        normalized = MARK_PATTERN.matcher(normalized).replaceAll("");
+        normalized = SEPARATOR_PATTERN.matcher(normalized.toLowerCase(Locale.ENGLISH)).replaceAll(" ");
+        return normalized.trim();
+    }
+
+    /**
+     * Index of the books of a user.
+     */
+    private static class UserIndex {
+        /**
+         * Terms sorted for the binary search, replaced on each change.
+         */
+        private volatile Term[] terms = new Term[0];
+
+        /**
+         * Suggestions by user book ID. Guarded by this.
+         */
+        private final Map<String, Suggestion> suggestionMap = new HashMap<>();
+
+        /**
+         * User book IDs by book ID. Guarded by this.
+         */
+        private final Map<String, String> userBookIdMap = new HashMap<>();
+
+        /**
+         * Adds the books loaded from the database.
+         *
+         * @param userBookDetailList User book details
+         */
+        private synchronized void addAll(List<UserBookDetailDto> userBookDetailList) {
+            for (UserBookDetailDto userBookDetailDto : userBookDetailList) {
+                Suggestion suggestion = new Suggestion(userBookDetailDto.getId(), userBookDetailDto.getBookId(),
+                        userBookDetailDto.getTitle(), userBookDetailDto.getAuthor());
+                suggestionMap.put(suggestion.userBookId, suggestion);
+                userBookIdMap.put(suggestion.bookId, suggestion.userBookId);
+            }
+            rebuild();
+        }
+
+        private synchronized void put(Suggestion suggestion) {
+            Suggestion previous = suggestionMap.put(suggestion.userBookId, suggestion);
+            if (previous != null) {
+                userBookIdMap.remove(previous.bookId);
+            }
+            userBookIdMap.put(suggestion.bookId, suggestion.userBookId);
+            replace(previous, suggestion);
+        }
+
+        private synchronized void update(Book book) {
+            String userBookId = userBookIdMap.get(book.getId());
+            if (userBookId != null) {
+                Suggestion suggestion = new Suggestion(userBookId, book.getId(), book.getTitle(), book.getAuthor());
+                replace(suggestionMap.put(userBookId, suggestion), suggestion);
+            }
+        }
+
+        private synchronized void remove(String userBookId) {
+            Suggestion suggestion = suggestionMap.remove(userBookId);
+            if (suggestion != null) {
+                userBookIdMap.remove(suggestion.bookId);
+                replace(suggestion, null);
+            }
+        }
+
+        /**
+         * Replaces the terms of a suggestion, merging the new terms in a new array.
+         *
+         * @param removed Suggestion to remove, may be null
+         * @param added Suggestion to add, may be null
+         */
+        private void replace(Suggestion removed, Suggestion added) {
+            List<Term> addedTermList = new ArrayList<>();
+            if (added != null) {
+                addTerms(addedTermList, added.title, added);
+                addTerms(addedTermList, added.author, added);
+                Collections.sort(addedTermList);
+            }
+
+            Term[] terms = this.terms;
+            List<Term> termList = new ArrayList<>(terms.length + addedTermList.size());
+            int j = 0;
+            for (Term term : terms) {
+                if (term.suggestion == removed) {
+                    continue;
+                }
+                while (j < addedTermList.size() && addedTermList.get(j).compareTo(term) < 0) {
+                    termList.add(addedTermList.get(j++));
+                }
+                termList.add(term);
+            }
+            termList.addAll(addedTermList.subList(j, addedTermList.size()));
+            this.terms = termList.toArray(new Term[termList.size()]);
+        }
+
+        /**
+         * Sorts the terms of all the suggestions in a new array.
+         */
+        private void rebuild() {
+            List<Term> termList = new ArrayList<>();
+            for (Suggestion suggestion : suggestionMap.values()) {
+                addTerms(termList, suggestion.title, suggestion);
+                addTerms(termList, suggestion.author, suggestion);
+            }
+            Term[] newTerms = termList.toArray(new Term[termList.size()]);
+            Arrays.sort(newTerms);
+            terms = newTerms;
+        }
+
+        /**
+         * Adds a term for each word of a text, from this word to the end of the text.
+         *
+         * @param termList Terms
+         * @param text Text
+         * @param suggestion Suggestion
+         */
+        private static void addTerms(List<Term> termList, String text, Suggestion suggestion) {
+            String normalized = normalize(text);
+            if (normalized.isEmpty()) {
+                return;
+            }
+            termList.add(new Term(normalized, suggestion));
+            int words = 1;
+            for (int i = normalized.indexOf(' '); i >= 0 && words < MAX_WORDS; i = normalized.indexOf(' ', i + 1)) {
+                termList.add(new Term(normalized.substring(i + 1), suggestion));
+                words++;
+            }
+        }
+
+        /**
+         * Returns the books matching a normalized prefix.
+         *
+         * @param prefix Normalized prefix
+         * @param limit Maximum number of suggestions
+         * @return Suggestions
+         */
+        private List<Suggestion> suggest(String prefix, int limit) {
+            Term[] terms = this.terms;
+
+            // First term greater or equal to the prefix
+            int low = 0;
+            int high = terms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (terms[mid].text.compareTo(prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            Map<String, Suggestion> suggestionMap = new LinkedHashMap<>();
+            for (int i = low; i < terms.length && suggestionMap.size() < limit && terms[i].text.startsWith(prefix); i++) {
+                Suggestion suggestion = terms[i].suggestion;
+                if (!suggestionMap.containsKey(suggestion.userBookId)) {
+                    suggestionMap.put(suggestion.userBookId, suggestion);
+                }
+            }
+            return new ArrayList<>(suggestionMap.values());
+        }
+    }
+
+    /**
+     * Indexed term.
+     */
+    private static class Term implements Comparable<Term> {
+        private final String text;
+
+        private final Suggestion suggestion;
+
+        private Term(String text, Suggestion suggestion) {
+            this.text = text;
+            this.suggestion = suggestion;
+        }
+
+        @Override
+        public int compareTo(Term other) {
+            return text.compareTo(other.text);
+        }
+    }
+
+    /**
+     * Suggested book.
+     */
+    public static class Suggestion {
+        private final String userBookId;
+
+        private final String bookId;
+
+        private final String title;
+
+        private final String author;
+
+        private Suggestion(String userBookId, String bookId, String title, String author) {
+            this.userBookId = userBookId;
+            this.bookId = bookId;
+            this.title = title;
+            this.author = author;
+        }
+
+        public String getUserBookId() {
+            return userBookId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.sismics.books.rest.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Encodes the JSON data model in CBOR (RFC 7049), with definite lengths.
+ *
+ * Integers are encoded in their shortest form, other numbers as doubles,
+ * and unknown objects as their string value, as in JSON.
+ *
+ * @author agent
+ */
+public class CborWriter {
+    /**
+     * Major type of the unsigned integers.
+     */
+    private static final int UNSIGNED_INTEGER = 0;
+
+    /**
+     * Major type of the negative integers.
+     */
+    private static final int NEGATIVE_INTEGER = 1;
+
+    /**
+     * Major type of the text strings.
+     */
+    private static final int TEXT_STRING = 3;
+
+    /**
+     * Major type of the arrays.
+     */
+    private static final int ARRAY = 4;
+
+    /**
+     * Major type of the maps.
+     */
+    private static final int MAP = 5;
+
+    private static final int FALSE = 0xf4;
+
+    private static final int TRUE = 0xf5;
+
+    private static final int NULL = 0xf6;
+
+    private static final int DOUBLE = 0xfb;
+
+    private final DataOutputStream out;
+
+    private CborWriter(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Encodes a JSON object.
+     *
+     * @param jsonObject JSON object
+     * @return CBOR data
+     */
+    public static byte[] toBytes(JSONObject jsonObject) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new CborWriter(new DataOutputStream(bytes)).write(jsonObject);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a value.
+     *
+     * @param value Value
+     * @throws IOException
+     */
+    private void write(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            if (number >= 0) {
+                writeHead(UNSIGNED_INTEGER, number);
+            } else {
+                writeHead(NEGATIVE_INTEGER, -1 - number);
+            }
+        } else if (value instanceof Number) {
+            out.write(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject) value;
+            writeHead(MAP, jsonObject.length());
+            Iterator<?> keys = jsonObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next().toString();
+                writeString(key);
+                write(jsonObject.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray) value;
+            writeHead(ARRAY, jsonArray.length());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                write(jsonArray.opt(i));
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writeHead(ARRAY, collection.size());
+            for (Object item : collection) {
+                write(item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeHead(MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()));
+                write(entry.getValue());
+            }
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes a text string.
+     *
+     * @param value String
+     * @throws IOException
+     */
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        writeHead(TEXT_STRING, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes the head of a data item: its major type and its argument in the shortest form.
+     *
+     * @param majorType Major type
+     * @param argument Argument, a value or a length, unsigned
+     * @throws IOException
+     */
+    private void writeHead(int majorType, long argument) throws IOException {
+        int type = majorType << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument <= 0xff) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument <= 0xffff) {
+            out.write(type | 25);
+            out.writeShort((int) argument);
+        } else if (argument <= 0xffffffffL) {
+            out.write(type | 26);
+            out.writeInt((int) argument);
+        } else {
+            out.write(type | 27);
+            out.writeLong(argument);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.sismics.books.core.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free circuit breaker.
+ *
+ * The circuit opens after a number of consecutive failures and rejects calls
+ * for a while. It then lets a single trial call through: a success closes the
+ * circuit, a failure opens it again.
+ *
+ * @author agent
+ */
+public class CircuitBreaker {
+    /**
+     * Circuit state.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Marker for a closed circuit.
+     */
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    /**
+     * Consecutive failures opening the circuit.
+     */
+    private final int failureThreshold;
+
+    /**
+     * Time the circuit stays open, in nanoseconds.
+     */
+    private final long openDuration;
+
+    /**
+     * Current consecutive failures.
+     */
+    private final AtomicInteger failureCount = new AtomicInteger();
+
+    /**
+     * Time the circuit was opened, from System.nanoTime().
+     */
+    private final AtomicLong openTime = new AtomicLong(CLOSED);
+
+    /**
+     * True if the trial call of a half-open circuit is in progress.
+     */
+    private final AtomicBoolean trialInProgress = new AtomicBoolean();
+
+    /**
+     * Constructor of CircuitBreaker.
+     *
+     * @param failureThreshold Consecutive failures opening the circuit
+     * @param openDuration Time the circuit stays open, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+    }
+
+    /**
+     * Asks for the permission to make a call.
+     * A granted call must be settled with one of the methods of its permit.
+     *
+     * @return Permit, or null if the call is rejected
+     */
+    public Permit tryAcquire() {
+        long opened = openTime.get();
+        if (opened == CLOSED) {
+            return new Permit(false);
+        }
+        if (System.nanoTime() - opened < openDuration) {
+            return null;
+        }
+        return trialInProgress.compareAndSet(false, true) ? new Permit(true) : null;
+    }
+
+    /**
+     * Records a successful call.
+     *
+     * @param trial True if the call was the trial call
+     */
+    private void recordSuccess(boolean trial) {
+        failureCount.set(0);
+        openTime.set(CLOSED);
+        if (trial) {
+            trialInProgress.set(false);
+        }
+    }
+
+    /**
+     * Records a failed call.
+     *
+     * @param trial True if the call was the trial call
+     */
+    private void recordFailure(boolean trial) {
+        if (failureCount.incrementAndGet() >= failureThreshold || trial) {
+            openTime.set(System.nanoTime());
+        }
+        if (trial) {
+            trialInProgress.set(false);
+        }
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return State
+     */
+    public State getState() {
+        long opened = openTime.get();
+        if (opened == CLOSED) {
+            return State.CLOSED;
+        }
+        return System.nanoTime() - opened < openDuration ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /**
+     * Permission to make one call, settled once: the first outcome recorded wins.
+     */
+    public class Permit {
+        /**
+         * True if the call is the trial call of a half-open circuit.
+         */
+        private final boolean trial;
+
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Permit(boolean trial) {
+            this.trial = trial;
+        }
+
+        /**
+         * Records a successful call.
+         */
+        public void recordSuccess() {
+            if (settled.compareAndSet(false, true)) {
+                CircuitBreaker.this.recordSuccess(trial);
+            }
+        }
+
+        /**
+         * Records a failed call.
+         */
+        public void recordFailure() {
+            if (settled.compareAndSet(false, true)) {
+                CircuitBreaker.this.recordFailure(trial);
+            }
+        }
+
+        /**
+         * Releases a call abandoned before its outcome was known, such as a cancelled call.
+         * A released trial call lets the next call be a trial.
+         */
+        public void release() {
+            if (settled.compareAndSet(false, true) && trial) {
+                trialInProgress.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.sismics.books.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage of book covers.
+ *
+ * @author agent
+ */
+public interface CoverStore {
+    /**
+     * Opens a cover.
+     *
+     * @param bookId Book ID
+     * @return Cover content, or null if there is no cover
+     * @throws IOException
+     */
+    InputStream open(String bookId) throws IOException;
+
+    /**
+     * Stores a cover, replacing the existing one.
+     *
+     * @param bookId Book ID
+     * @param file Cover file, moved into the store
+     * @throws IOException
+     */
+    void store(String bookId, File file) throws IOException;
+
+    /**
+     * Moves a cover written at &lt;book directory&gt;/&lt;book ID&gt;, e.g. by
+     * BookDataService.downloadThumbnail(), into the store.
+     *
+     * @param bookId Book ID
+     * @throws IOException
+     */
+    void storeLegacy(String bookId) throws IOException;
+}
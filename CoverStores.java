@@ -0,0 +1,56 @@
+package com.sismics.books.core.service;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sismics.books.core.util.DirectoryUtil;
+
+/**
+ * Access to the configured cover store.
+ *
+ * The file-per-book store is the default. The packed store is enabled with
+ * the system property books.cover.store=packed.
+ *
+ * @author agent
+ */
+public class CoverStores {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(CoverStores.class);
+
+    /**
+     * Configured store.
+     */
+    private static CoverStore instance;
+
+    /**
+     * Returns the configured cover store.
+     *
+     * @return Cover store
+     */
+    public static synchronized CoverStore getInstance() {
+        if (instance == null) {
+            if ("packed".equals(System.getProperty("books.cover.store"))) {
+                // The packed store migrates both file layouts itself
+                FileCoverStore fileCoverStore = new FileCoverStore(DirectoryUtil.getBookDirectory());
+                try {
+                    PackedCoverStore packedCoverStore = new PackedCoverStore(new File(DirectoryUtil.getBookDirectory(), "packed"),
+                            DirectoryUtil.getBookDirectory(), fileCoverStore,
+                            Long.getLong("books.cover.segmentSize", 256L * 1024 * 1024));
+                    packedCoverStore.startMigration();
+                    instance = packedCoverStore;
+                } catch (IOException e) {
+                    log.error("Error opening the packed cover store, using the file store", e);
+                }
+            }
+            if (instance == null) {
+                instance = FileCoverStore.getInstance();
+            }
+        }
+        return instance;
+    }
+}
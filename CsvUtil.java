@@ -0,0 +1,74 @@
+package com.sismics.books.core.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV utilities.
+ *
+ * @author agent
+ */
+public class CsvUtil {
+    /**
+     * Reads a CSV record, which spans several lines if a quoted field contains line breaks.
+     *
+     * @param reader Reader
+     * @return Record with its line breaks, or null at the end of the stream
+     * @throws IOException
+     */
+    public static String readRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        while (line != null) {
+            sb.append(line).append('\n');
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '"') {
+                    quoted = !quoted;
+                }
+            }
+            if (!quoted) {
+                break;
+            }
+            line = reader.readLine();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Splits a CSV record in fields, unquoting them.
+     *
+     * @param record Record
+     * @return Fields
+     */
+    public static List<String> split(String record) {
+        List<String> fieldList = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        int length = record.endsWith("\n") ? record.length() - 1 : record.length();
+        for (int i = 0; i < length; i++) {
+            char c = record.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < length && record.charAt(i + 1) == '"') {
+                    // Escaped quote
+                    sb.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fieldList.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        fieldList.add(sb.toString());
+        return fieldList;
+    }
+}
@@ -0,0 +1,138 @@
+package com.sismics.books.rest.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.service.UserAdmissionControl.Admission;
+
+/**
+ * Bounded executor for blocking calls to external services.
+ *
+ * At most (pool size + queue size) container threads can be waiting on external
+ * services at the same time, and each of them for at most the call timeout.
+ * Any other request is rejected immediately instead of tying up a container thread.
+ *
+ * @author agent
+ */
+public class ExternalCallExecutor {
+    /**
+     * Number of concurrent external calls.
+     */
+    private static final int POOL_SIZE = Integer.getInteger("books.external.poolSize", 16);
+
+    /**
+     * Number of external calls waiting for a thread.
+     */
+    private static final int QUEUE_SIZE = Integer.getInteger("books.external.queueSize", 32);
+
+    /**
+     * Timeout of an external call, in milliseconds.
+     */
+    private static final long TIMEOUT = Long.getLong("books.external.timeout", 10000L);
+
+    /**
+     * States of a call.
+     */
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int ABANDONED = 2;
+
+    /**
+     * Executor.
+     */
+    private static final ThreadPoolExecutor executor = newExecutor();
+
+    /**
+     * Runs an external call and waits for its result.
+     * The admission of the call is released when the call ends, which may be after
+     * a timeout: a call that ignores its interruption still counts as in flight.
+     *
+     * @param operation Operation name, for metrics
+     * @param callable External call
+     * @param admission Admission of the call, released by this method
+     * @return Result
+     * @throws RejectedExecutionException If too many external calls are in progress
+     * @throws TimeoutException If the call didn't complete in time
+     * @throws Exception Exception thrown by the call
+     */
+    public static <T> T call(final String operation, final Callable<T> callable, final Admission admission) throws Exception {
+        // Queued, running or abandoned before running
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        Future<T> future;
+        try {
+            future = executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (!state.compareAndSet(QUEUED, RUNNING)) {
+                        return null;
+                    }
+                    long startTime = System.nanoTime();
+                    try {
+                        return callable.call();
+                    } finally {
+                        Metrics.observeExternal(operation, startTime);
+                        admission.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            Metrics.increment("books_external_call_rejected_total", Metrics.labels("operation", operation));
+            throw e;
+        }
+
+        try {
+            return future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(future, state, admission);
+            Metrics.increment("books_external_call_timeout_total", Metrics.labels("operation", operation));
+            throw e;
+        } catch (InterruptedException e) {
+            abandon(future, state, admission);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels a call the caller no longer waits for.
+     * Its admission is released now if it never ran, or by the call itself when it ends.
+     *
+     * @param future Call
+     * @param state State of the call
+     * @param admission Admission of the call
+     */
+    private static void abandon(Future<?> future, AtomicInteger state, Admission admission) {
+        future.cancel(true);
+        if (state.compareAndSet(QUEUED, ABANDONED)) {
+            admission.release();
+        }
+    }
+
+    /**
+     * Creates the executor.
+     *
+     * @return Executor
+     */
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("external-call-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
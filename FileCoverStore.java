@@ -0,0 +1,191 @@
+package com.sismics.books.core.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.sismics.books.core.util.DirectoryUtil;
+
+/**
+ * Cover storage, one file per book in a two-level hashed directory layout:
+ * &lt;book directory&gt;/ab/cd/&lt;book ID&gt;.
+ *
+ * Covers in the legacy flat layout (&lt;book directory&gt;/&lt;book ID&gt;) stay readable
+ * and are moved to the hashed layout by a background migration.
+ *
+ * @author agent
+ */
+public class FileCoverStore implements CoverStore {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FileCoverStore.class);
+
+    /**
+     * Singleton.
+     */
+    private static FileCoverStore instance;
+
+    /**
+     * Root directory.
+     */
+    private final File rootDirectory;
+
+    /**
+     * Constructor of FileCoverStore.
+     *
+     * @param rootDirectory Root directory
+     */
+    public FileCoverStore(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * Returns the store of the book directory, and starts the migration of the
+     * legacy flat layout on first call.
+     *
+     * @return Cover store
+     */
+    public static synchronized FileCoverStore getInstance() {
+        if (instance == null) {
+            instance = new FileCoverStore(DirectoryUtil.getBookDirectory());
+            instance.startMigration();
+        }
+        return instance;
+    }
+
+    @Override
+    public InputStream open(String bookId) throws IOException {
+        for (File file : new File[] { getFile(bookId), getLegacyFile(bookId) }) {
+            try {
+                return new FileInputStream(file);
+            } catch (IOException e) {
+                // Try the next layout
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void store(String bookId, File file) throws IOException {
+        File target = getFile(bookId);
+        Files.createDirectories(target.getParentFile().toPath());
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void storeLegacy(String bookId) throws IOException {
+        try {
+            store(bookId, getLegacyFile(bookId));
+        } catch (NoSuchFileException e) {
+            // Already moved
+        }
+    }
+
+    /**
+     * Moves all covers of the legacy flat layout to the hashed layout.
+     *
+     * @return Number of covers moved
+     * @throws IOException
+     */
+    public int migrate() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(rootDirectory.toPath())) {
+            for (Path path : directoryStream) {
+                if (Files.isRegularFile(path)) {
+                    storeLegacy(path.getFileName().toString());
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts the migration of the legacy flat layout in a background thread.
+     */
+    private void startMigration() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = migrate();
+                    if (count > 0) {
+                        log.info(count + " covers moved to the hashed directory layout");
+                    }
+                } catch (IOException e) {
+                    log.error("Error migrating covers to the hashed directory layout", e);
+                }
+            }
+        }, "cover-migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Returns the IDs of the books with a cover in the hashed layout.
+     *
+     * @return Book IDs
+     * @throws IOException
+     */
+    public List<String> getBookIdList() throws IOException {
+        List<String> bookIdList = new ArrayList<>();
+        try (DirectoryStream<Path> level1Stream = Files.newDirectoryStream(rootDirectory.toPath(), "[0-9a-f][0-9a-f]")) {
+            for (Path level1 : level1Stream) {
+                if (!Files.isDirectory(level1)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> level2Stream = Files.newDirectoryStream(level1, "[0-9a-f][0-9a-f]")) {
+                    for (Path level2 : level2Stream) {
+                        if (!Files.isDirectory(level2)) {
+                            continue;
+                        }
+                        try (DirectoryStream<Path> fileStream = Files.newDirectoryStream(level2)) {
+                            for (Path file : fileStream) {
+                                if (Files.isRegularFile(file)) {
+                                    bookIdList.add(file.getFileName().toString());
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return bookIdList;
+    }
+
+    /**
+     * Returns the cover file in the hashed layout.
+     *
+     * @param bookId Book ID
+     * @return Cover file
+     */
+    public File getFile(String bookId) {
+        String hash = Hashing.murmur3_32().hashString(bookId, Charsets.UTF_8).toString();
+        return new File(new File(new File(rootDirectory, hash.substring(0, 2)), hash.substring(2, 4)), bookId);
+    }
+
+    /**
+     * Returns the cover file in the legacy flat layout.
+     *
+     * @param bookId Book ID
+     * @return Cover file
+     */
+    private File getLegacyFile(String bookId) {
+        return new File(rootDirectory, bookId);
+    }
+}
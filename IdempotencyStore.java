@@ -0,0 +1,232 @@
+package com.sismics.books.rest.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sismics.books.core.util.TransactionHooks;
+import com.sismics.rest.exception.ClientException;
+
+/**
+ * Responses of the requests sent with an Idempotency-Key header.
+ *
+ * The first request with a key runs and its successful response is stored
+ * once its transaction is committed. Retries with the same key get the stored
+ * response without running again, and retries arriving while the first request
+ * runs get a conflict to retry later, without waiting for it while holding their
+ * transaction. Failed or rolled back requests are not stored, so they can be retried.
+ *
+ * @author agent
+ */
+public class IdempotencyStore {
+    /**
+     * Singleton.
+     */
+    private static final IdempotencyStore instance = new IdempotencyStore(
+            Long.getLong("books.idempotency.size", 10000L),
+            Long.getLong("books.idempotency.ttl", 24L * 3600 * 1000));
+
+    /**
+     * Maximum length of an idempotency key.
+     */
+    private static final int MAX_KEY_LENGTH = 255;
+
+    /**
+     * Retry delay of a request whose key is in use by a request in progress, in seconds.
+     */
+    private static final int IN_PROGRESS_RETRY_AFTER = 1;
+
+    /**
+     * Entries by user, operation and key.
+     */
+    private final Cache<String, Entry> cache;
+
+    /**
+     * Constructor of IdempotencyStore.
+     *
+     * @param maximumSize Maximum number of stored responses
+     * @param ttl Time a response is stored, in milliseconds
+     */
+    public IdempotencyStore(long maximumSize, long ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the store.
+     *
+     * @return Idempotency store
+     */
+    public static IdempotencyStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts a request. The request ends with its transaction.
+     *
+     * @param userId User ID
+     * @param operation Operation
+     * @param idempotencyKey Idempotency key, may be null
+     * @param params Request parameters, a key must always be reused with the same parameters
+     * @return Ticket, or null without idempotency key
+     */
+    public Ticket begin(String userId, String operation, String idempotencyKey, Object... params) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new ClientException("ValidationError", "Idempotency-Key must be at most " + MAX_KEY_LENGTH + " characters");
+        }
+        String key = userId + ":" + operation + ":" + idempotencyKey;
+        String fingerprint = Arrays.deepToString(params);
+        while (true) {
+            Entry entry = new Entry(fingerprint);
+            Entry existing = cache.asMap().putIfAbsent(key, entry);
+            if (existing == null) {
+                final Ticket ticket = new Ticket(key, entry, true);
+                TransactionHooks.afterCompletion(new TransactionHooks.Hook() {
+                    @Override
+                    public void afterCompletion(boolean committed) {
+                        end(ticket, committed);
+                    }
+                });
+                return ticket;
+            }
+            if (!existing.fingerprint.equals(fingerprint)) {
+                throw new ClientException("IdempotencyKeyReused", "This idempotency key has been used with other parameters");
+            }
+
+            if (existing.body != null) {
+                Metrics.increment("books_idempotency_replays_total", Metrics.labels("operation", operation));
+                return new Ticket(key, existing, false);
+            }
+            if (!existing.ended) {
+                // In progress, the retry gets a conflict
+                Metrics.increment("books_idempotency_conflicts_total", Metrics.labels("operation", operation));
+                return new Ticket(key, existing, false);
+            }
+            // The request failed and has been removed, run again
+        }
+    }
+
+    /**
+     * Completes a request. Its response is stored once the transaction is committed.
+     *
+     * @param ticket Ticket, may be null
+     * @param response Response
+     * @return Response
+     */
+    public Response complete(Ticket ticket, JSONObject response) {
+        if (ticket != null && ticket.owner) {
+            ticket.body = response.toString();
+        }
+        return Response.ok().entity(response).build();
+    }
+
+    /**
+     * Ends a request with its transaction. A request not completed or rolled back is forgotten,
+     * and its retries run again.
+     *
+     * @param ticket Ticket
+     * @param committed True if the transaction is committed
+     */
+    private void end(Ticket ticket, boolean committed) {
+        if (committed && ticket.body != null) {
+            ticket.entry.body = ticket.body;
+        } else {
+            cache.asMap().remove(ticket.key, ticket.entry);
+        }
+        ticket.entry.ended = true;
+    }
+
+    /**
+     * Request with an idempotency key.
+     */
+    public static class Ticket {
+        private final String key;
+
+        private final Entry entry;
+
+        /**
+         * True if this request runs, false if it replays a stored response or a conflict.
+         */
+        private final boolean owner;
+
+        /**
+         * Response body of the completed request, stored once committed.
+         */
+        private String body;
+
+        private Ticket(String key, Entry entry, boolean owner) {
+            this.key = key;
+            this.entry = entry;
+            this.owner = owner;
+        }
+
+        /**
+         * Returns true if this request must not run, and replay a stored response
+         * or a conflict while the request with the same key is in progress.
+         *
+         * @return Replay
+         */
+        public boolean isReplay() {
+            return !owner;
+        }
+
+        /**
+         * Returns the stored response, or a conflict if the request with the same key is in progress.
+         *
+         * @return Response
+         * @throws JSONException
+         */
+        public Response replay() throws JSONException {
+            String body = entry.body;
+            if (body == null) {
+                JSONObject response = new JSONObject();
+                response.put("type", "RequestInProgress");
+                response.put("message", "A request with this idempotency key is in progress");
+                return Response.status(Status.CONFLICT)
+                        .entity(response)
+                        .header("Retry-After", IN_PROGRESS_RETRY_AFTER)
+                        .build();
+            }
+            return Response.ok()
+                    .entity(new JSONObject(body))
+                    .header("Idempotent-Replayed", "true")
+                    .build();
+        }
+    }
+
+    /**
+     * Stored request.
+     */
+    private static class Entry {
+        /**
+         * Request parameters.
+         */
+        private final String fingerprint;
+
+        /**
+         * True once the request has ended.
+         */
+        private volatile boolean ended;
+
+        /**
+         * Response body, null until completed.
+         */
+        private volatile String body;
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
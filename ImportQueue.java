@@ -0,0 +1,980 @@
+package com.sismics.books.core.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.dao.jpa.BookDao;
+import com.sismics.books.core.dao.jpa.BookIsbnDao;
+import com.sismics.books.core.dao.jpa.IsbnFilter;
+import com.sismics.books.core.dao.jpa.UserBookCountCache;
+import com.sismics.books.core.dao.jpa.UserDao;
+import com.sismics.books.core.event.BookImportedEvent;
+import com.sismics.books.core.listener.async.BookImportAsyncListener;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.model.jpa.User;
+import com.sismics.books.core.util.CsvUtil;
+import com.sismics.books.core.util.DirectoryUtil;
+import com.sismics.books.core.util.IsbnUtil;
+import com.sismics.books.core.util.TransactionHooks;
+import com.sismics.books.core.util.TransactionUtil;
+
+/**
+ * Persistent queue of the book imports.
+ *
+ * An import is split into chunks of rows, spooled to disk in &lt;spool&gt;/&lt;user ID&gt;/&lt;job ID&gt;/&lt;chunk&gt;.csv.
+ * Workers take one chunk at a time, in round-robin across users, so a large import
+ * does not delay the imports of other users. Chunks are deleted once imported and committed.
+ * A failed chunk is retried after a delay, and kept on disk after the last attempt.
+ * The remaining chunks are queued again when the queue is first used. The workers are
+ * started with the queue and stopped with the application, see stop().
+ *
+ * Each user has a history of the hashes of the files and rows already imported,
+ * so that identical imports are skipped and modified ones only queue their new rows.
+ * The hashes of the rows that produced a book are recorded once their chunk is committed,
+ * and the hash of a file once all its chunks are, if none of its rows was left out.
+ * The history is kept in one file by day, and forgotten after the retention time,
+ * or as soon as the user deletes a book, so that a later import can add it back.
+ *
+ * Before a chunk is imported, its books missing from the catalog are searched in parallel
+ * and inserted in one batch. Only the rows whose book is then in the catalog are given to
+ * the import listener, so that every search goes through the lookup service, with the
+ * import budget of the user and the not found cache, and never directly to the book data service.
+ *
+ * @author agent
+ */
+public class ImportQueue {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ImportQueue.class);
+
+    /**
+     * Singleton.
+     */
+    private static ImportQueue instance;
+
+    /**
+     * Name of the staging directory, ignored on restart.
+     */
+    private static final String STAGING_DIRECTORY = ".staging";
+
+    /**
+     * Name of the history directory, ignored on restart.
+     */
+    private static final String HISTORY_DIRECTORY = ".history";
+
+    /**
+     * Name of the file holding the hash of the imported file, in each job directory.
+     */
+    private static final String HASH_FILE = "import.hash";
+
+    /**
+     * Extension of the chunk files.
+     */
+    private static final String CHUNK_EXTENSION = ".csv";
+
+    /**
+     * Marker file of a job with rows left out of the import.
+     */
+    private static final String PARTIAL_FILE = "import.partial";
+
+    /**
+     * Extension of the history files of the imported files.
+     */
+    private static final String FILE_HISTORY_EXTENSION = ".files";
+
+    /**
+     * Extension of the history files of the imported rows.
+     */
+    private static final String ROW_HISTORY_EXTENSION = ".rows";
+
+    /**
+     * Retention time of the import history, in days.
+     */
+    private static final long HISTORY_RETENTION = Long.getLong("books.import.historyRetention", 90L);
+
+    /**
+     * Extension of the resolved chunk files, given to the import listener.
+     */
+    private static final String RESOLVED_EXTENSION = ".resolved";
+
+    /**
+     * Maximum wait for the lookup budget of a user, in milliseconds.
+     */
+    private static final long LOOKUP_WAIT = Long.getLong("books.import.lookupWait", 60000L);
+
+    /**
+     * Spool directory.
+     */
+    private final File spoolDirectory;
+
+    /**
+     * Number of rows by chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * Maximum number of pending chunks.
+     */
+    private final int maxPending;
+
+    /**
+     * Maximum number of pending chunks by user.
+     */
+    private final int maxPendingPerUser;
+
+    /**
+     * Pending chunks by user ID. Guarded by this.
+     */
+    private final Map<String, Deque<File>> pendingMap = new HashMap<>();
+
+    /**
+     * Users with pending chunks, in round-robin order. Guarded by this.
+     */
+    private final Deque<String> userQueue = new ArrayDeque<>();
+
+    /**
+     * Number of pending chunks. Guarded by this.
+     */
+    private int pendingCount;
+
+    /**
+     * Number of failed attempts by chunk. Guarded by this.
+     */
+    private final Map<File, Integer> attemptMap = new HashMap<>();
+
+    /**
+     * Maximum number of attempts of a chunk.
+     */
+    private final int maxAttempts;
+
+    /**
+     * Delay before retrying a failed chunk, multiplied by the number of attempts, in milliseconds.
+     */
+    private final long retryDelay;
+
+    /**
+     * Job sequence, to keep the jobs ordered inside a millisecond.
+     */
+    private final AtomicInteger jobSequence = new AtomicInteger();
+
+    /**
+     * Directory of the hashes of the previous imports, by user.
+     */
+    private final File historyDirectory;
+
+    /**
+     * Locks serializing the imports of each user.
+     */
+    private final Striped<Lock> userLocks = Striped.lock(64);
+
+    /**
+     * Import workers.
+     */
+    private ExecutorService executorService;
+
+    /**
+     * Scheduler of the retries of the failed chunks.
+     */
+    private ScheduledExecutorService retryExecutorService;
+
+    /**
+     * Constructor of ImportQueue.
+     *
+     * @param spoolDirectory Spool directory
+     * @param chunkSize Number of rows by chunk
+     * @param maxPending Maximum number of pending chunks
+     * @param maxPendingPerUser Maximum number of pending chunks by user
+     * @param maxAttempts Maximum number of attempts of a chunk
+     * @param retryDelay Delay before retrying a failed chunk, multiplied by the number of attempts, in milliseconds
+     */
+    public ImportQueue(File spoolDirectory, int chunkSize, int maxPending, int maxPendingPerUser, int maxAttempts, long retryDelay) {
+        this.spoolDirectory = spoolDirectory;
+        this.historyDirectory = new File(spoolDirectory, HISTORY_DIRECTORY);
+        this.chunkSize = chunkSize;
+        this.maxPending = maxPending;
+        this.maxPendingPerUser = maxPendingPerUser;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Returns the import queue. Its workers are started on first use.
+     *
+     * @return Import queue
+     */
+    public static synchronized ImportQueue getInstance() {
+        if (instance == null) {
+            instance = new ImportQueue(new File(DirectoryUtil.getBaseDataDirectory(), "import"),
+                    Integer.getInteger("books.import.chunkSize", 500),
+                    Integer.getInteger("books.import.maxPending", 1000),
+                    Integer.getInteger("books.import.maxPendingPerUser", 200),
+                    Integer.getInteger("books.import.maxAttempts", 5),
+                    Long.getLong("books.import.retryDelay", 30000L));
+            instance.start(Integer.getInteger("books.import.workers", 2));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues an import. The import file is consumed.
+     * An import identical to a previous one of the same user is skipped,
+     * and only the rows not seen in the previous imports are queued.
+     *
+     * @param userId User ID
+     * @param importFile Import file, in CSV with a header row
+     * @param hash Content hash of the import file
+     * @return Result
+     * @throws IOException
+     */
+    public EnqueueResult enqueue(String userId, File importFile, String hash) throws IOException {
+        Lock userLock = userLocks.get(userId);
+        userLock.lock();
+        try {
+            if (readHistory(userId, FILE_HISTORY_EXTENSION).contains(hash) || getPendingHashSet(userId).contains(hash)) {
+                importFile.delete();
+                return EnqueueResult.DUPLICATE;
+            }
+            Set<String> rowHashSet = readHistory(userId, ROW_HISTORY_EXTENSION);
+
+            // Split the new rows of the import in chunks, each with the header row
+            String jobId = String.format("%013d-%04d", System.currentTimeMillis(), jobSequence.incrementAndGet() % 10000);
+            File stagingDirectory = new File(new File(spoolDirectory, STAGING_DIRECTORY), userId + "-" + jobId);
+            Files.createDirectories(stagingDirectory.toPath());
+            int chunkCount = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(importFile), Charsets.UTF_8))) {
+                String header = CsvUtil.readRecord(reader);
+                String record = header == null ? null : nextNewRecord(reader, rowHashSet);
+                while (record != null) {
+                    File chunkFile = new File(stagingDirectory, String.format("%06d" + CHUNK_EXTENSION, chunkCount++));
+                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(chunkFile), Charsets.UTF_8))) {
+                        writer.write(header);
+                        for (int i = 0; i < chunkSize && record != null; i++) {
+                            writer.write(record);
+                            record = nextNewRecord(reader, rowHashSet);
+                        }
+                    }
+                }
+            } finally {
+                importFile.delete();
+            }
+            if (chunkCount == 0) {
+                // Nothing new to import
+                deleteDirectory(stagingDirectory);
+                appendHistory(userId, FILE_HISTORY_EXTENSION, Collections.singletonList(hash));
+                return EnqueueResult.QUEUED;
+            }
+            Files.write(new File(stagingDirectory, HASH_FILE).toPath(), Collections.singletonList(hash), Charsets.UTF_8);
+
+            File jobDirectory = new File(new File(spoolDirectory, userId), jobId);
+            synchronized (this) {
+                Deque<File> pendingDeque = pendingMap.get(userId);
+                int userPendingCount = pendingDeque == null ? 0 : pendingDeque.size();
+                if (pendingCount + chunkCount > maxPending || userPendingCount + chunkCount > maxPendingPerUser) {
+                    deleteDirectory(stagingDirectory);
+                    return EnqueueResult.FULL;
+                }
+
+                // Publish the whole job at once
+                Files.createDirectories(jobDirectory.getParentFile().toPath());
+                Files.move(stagingDirectory.toPath(), jobDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                queueChunks(userId, listChunks(jobDirectory));
+                notifyAll();
+            }
+            return EnqueueResult.QUEUED;
+        } finally {
+            userLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of pending chunks.
+     *
+     * @return Number of pending chunks
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Queues the spooled imports and starts the workers.
+     * Called once when the queue is created, before any import is queued.
+     *
+     * @param workerCount Number of workers
+     */
+    private void start(int workerCount) {
+        File[] userDirectories = spoolDirectory.listFiles();
+        if (userDirectories != null) {
+            for (File userDirectory : userDirectories) {
+                if (STAGING_DIRECTORY.equals(userDirectory.getName())) {
+                    // Interrupted before being queued
+                    deleteDirectory(userDirectory);
+                    continue;
+                }
+                if (HISTORY_DIRECTORY.equals(userDirectory.getName())) {
+                    continue;
+                }
+                File[] jobDirectories = userDirectory.listFiles();
+                if (jobDirectories == null || jobDirectories.length == 0) {
+                    userDirectory.delete();
+                    continue;
+                }
+                Arrays.sort(jobDirectories);
+                for (File jobDirectory : jobDirectories) {
+                    List<File> chunkList = listChunks(jobDirectory);
+                    if (chunkList.isEmpty()) {
+                        // Interrupted after its last chunk
+                        completeJob(userDirectory.getName(), jobDirectory);
+                        continue;
+                    }
+                    synchronized (this) {
+                        queueChunks(userDirectory.getName(), chunkList);
+                    }
+                }
+            }
+        }
+        if (pendingCount > 0) {
+            log.info(pendingCount + " import chunks resumed");
+        }
+
+        executorService = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+                .setNameFormat("import-worker-%d")
+                .setDaemon(true)
+                .build());
+        for (int i = 0; i < workerCount; i++) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+        retryExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("import-retry-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Stops the workers. The chunks not imported yet stay spooled for the next start.
+     * Called when the application stops.
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        if (executorService == null) {
+            return;
+        }
+        retryExecutorService.shutdownNow();
+        executorService.shutdownNow();
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the chunks of a spooled job.
+     *
+     * @param jobDirectory Job directory
+     * @return Chunk files, in order
+     */
+    private static List<File> listChunks(File jobDirectory) {
+        List<File> chunkList = new ArrayList<>();
+        File[] files = jobDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(CHUNK_EXTENSION)) {
+                    chunkList.add(file);
+                }
+            }
+        }
+        Collections.sort(chunkList);
+        return chunkList;
+    }
+
+    /**
+     * Adds chunks to the queue of their user. Must be called while holding the lock of this queue.
+     *
+     * @param userId User ID
+     * @param chunkList Chunk files
+     */
+    private void queueChunks(String userId, List<File> chunkList) {
+        Deque<File> pendingDeque = pendingMap.get(userId);
+        if (pendingDeque == null) {
+            pendingDeque = new ArrayDeque<>();
+            pendingMap.put(userId, pendingDeque);
+            userQueue.addLast(userId);
+        }
+        pendingDeque.addAll(chunkList);
+        pendingCount += chunkList.size();
+    }
+
+    /**
+     * Imports the chunks until interrupted.
+     */
+    private void work() {
+        try {
+            while (true) {
+                String userId;
+                File chunkFile;
+                int remaining;
+                synchronized (this) {
+                    while (userQueue.isEmpty()) {
+                        wait();
+                    }
+
+                    // Take the next chunk of the next user, then move the user to the end of the round
+                    userId = userQueue.pollFirst();
+                    Deque<File> pendingDeque = pendingMap.get(userId);
+                    chunkFile = pendingDeque.pollFirst();
+                    pendingCount--;
+                    remaining = pendingDeque.size();
+                    if (pendingDeque.isEmpty()) {
+                        pendingMap.remove(userId);
+                    } else {
+                        userQueue.addLast(userId);
+                    }
+                }
+
+                importChunk(userId, chunkFile);
+                LibraryEventBroker.getInstance().publish(userId, "import", "{\"remaining\":" + remaining + "}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Imports a chunk in one transaction, then deletes it. A failed chunk is retried.
+     * The chunks of a user who no longer exists are deleted.
+     *
+     * @param userId User ID
+     * @param chunkFile Chunk file
+     * @throws InterruptedException
+     */
+    private void importChunk(final String userId, File chunkFile) throws InterruptedException {
+        try {
+            final User[] user = new User[1];
+            boolean committed = TransactionHooks.handle(new Runnable() {
+                @Override
+                public void run() {
+                    user[0] = new UserDao().getById(userId);
+                }
+            });
+            if (!committed) {
+                retryChunk(userId, chunkFile);
+                return;
+            }
+            if (user[0] == null) {
+                log.warn("Deleting " + chunkFile + ", the user " + userId + " does not exist");
+                completeChunk(userId, chunkFile);
+                return;
+            }
+
+            File resolvedFile = resolveBooks(userId, chunkFile);
+            try {
+                if (resolvedFile != null) {
+                    final BookImportedEvent event = new BookImportedEvent();
+                    event.setUser(user[0]);
+                    event.setImportFile(resolvedFile);
+                    committed = TransactionHooks.handle(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                new BookImportAsyncListener().on(event);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                    if (!committed) {
+                        retryChunk(userId, chunkFile);
+                        return;
+                    }
+                }
+                BookSuggestIndex.getInstance().invalidate(userId);
+                UserBookCountCache.getInstance().invalidate(userId);
+                if (resolvedFile != null) {
+                    recordRows(userId, resolvedFile);
+                }
+            } finally {
+                if (resolvedFile != null) {
+                    resolvedFile.delete();
+                }
+            }
+            completeChunk(userId, chunkFile);
+        } catch (InterruptedException e) {
+            // Keep the chunk for the next start
+            throw e;
+        } catch (Exception e) {
+            log.error("Error importing " + chunkFile, e);
+            retryChunk(userId, chunkFile);
+        }
+    }
+
+    /**
+     * Queues a failed chunk again after a delay.
+     * After the last attempt, the chunk is kept on disk and retried on the next start.
+     *
+     * @param userId User ID
+     * @param chunkFile Chunk file
+     */
+    private void retryChunk(final String userId, final File chunkFile) {
+        int attempt;
+        synchronized (this) {
+            Integer previous = attemptMap.get(chunkFile);
+            attempt = previous == null ? 1 : previous + 1;
+            if (attempt >= maxAttempts) {
+                attemptMap.remove(chunkFile);
+            } else {
+                attemptMap.put(chunkFile, attempt);
+            }
+        }
+        if (attempt >= maxAttempts) {
+            log.error("Import of " + chunkFile + " failed " + attempt + " times, kept until the next start");
+            return;
+        }
+        log.warn("Import of " + chunkFile + " failed, retrying in " + retryDelay * attempt + "ms");
+        retryExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImportQueue.this) {
+                    queueChunks(userId, Collections.singletonList(chunkFile));
+                    ImportQueue.this.notifyAll();
+                }
+            }
+        }, retryDelay * attempt, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the hashes of the rows of a committed resolved chunk, so that they are not imported again.
+     *
+     * @param userId User ID
+     * @param chunkFile Resolved chunk file
+     */
+    private void recordRows(String userId, File chunkFile) {
+        List<String> rowHashList = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(chunkFile), Charsets.UTF_8))) {
+            if (CsvUtil.readRecord(reader) != null) {
+                // Past the header row
+                String record;
+                while ((record = CsvUtil.readRecord(reader)) != null) {
+                    rowHashList.add(hashRow(record));
+                }
+            }
+        } catch (IOException e) {
+            // The rows will only be imported again
+            log.warn("Error reading the rows of " + chunkFile, e);
+            return;
+        }
+        Lock userLock = userLocks.get(userId);
+        userLock.lock();
+        try {
+            appendHistory(userId, ROW_HISTORY_EXTENSION, rowHashList);
+        } catch (IOException e) {
+            log.warn("Error recording the rows of " + chunkFile, e);
+        } finally {
+            userLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the import history of a user, so that the next imports of the user are complete.
+     * Called when the user deletes a book, which an identical import must be able to add back.
+     *
+     * @param userId User ID
+     */
+    public void forgetHistory(String userId) {
+        Lock userLock = userLocks.get(userId);
+        userLock.lock();
+        try {
+            deleteDirectory(new File(historyDirectory, userId));
+        } finally {
+            userLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a chunk, and completes its job if it was the last one.
+     *
+     * @param userId User ID
+     * @param chunkFile Chunk file
+     */
+    private void completeChunk(String userId, File chunkFile) {
+        synchronized (this) {
+            attemptMap.remove(chunkFile);
+        }
+        chunkFile.delete();
+        File jobDirectory = chunkFile.getParentFile();
+        if (listChunks(jobDirectory).isEmpty()) {
+            completeJob(userId, jobDirectory);
+        }
+    }
+
+    /**
+     * Records the hash of the file of a job whose chunks are all imported, then deletes the job.
+     * The hash of a job with rows left out is not recorded, so that the file can be imported again.
+     *
+     * @param userId User ID
+     * @param jobDirectory Job directory
+     */
+    private void completeJob(String userId, File jobDirectory) {
+        Lock userLock = userLocks.get(userId);
+        userLock.lock();
+        try {
+            File hashFile = new File(jobDirectory, HASH_FILE);
+            if (hashFile.exists() && !new File(jobDirectory, PARTIAL_FILE).exists()) {
+                appendHistory(userId, FILE_HISTORY_EXTENSION, Files.readAllLines(hashFile.toPath(), Charsets.UTF_8));
+                hashFile.delete();
+            }
+        } catch (IOException e) {
+            log.warn("Error recording the import of " + jobDirectory, e);
+        } finally {
+            userLock.unlock();
+        }
+        deleteDirectory(jobDirectory);
+    }
+
+    /**
+     * Returns the hashes of the files of the jobs of a user still in the spool.
+     *
+     * @param userId User ID
+     * @return File hashes
+     * @throws IOException
+     */
+    private Set<String> getPendingHashSet(String userId) throws IOException {
+        Set<String> hashSet = new HashSet<>();
+        File[] jobDirectories = new File(spoolDirectory, userId).listFiles();
+        if (jobDirectories != null) {
+            for (File jobDirectory : jobDirectories) {
+                hashSet.addAll(readLines(new File(jobDirectory, HASH_FILE)));
+            }
+        }
+        return hashSet;
+    }
+
+    /**
+     * Adds to the catalog the books of a chunk missing from it, then writes the rows whose book
+     * is in the catalog to a resolved chunk, so that the import only finds local books and never
+     * searches one itself.
+     * The missing ISBNs are searched in parallel through the lookup service, and the books found
+     * are inserted in one transaction. The searches are admitted against the import budget of
+     * the user, waiting for it as needed, the ISBNs still over budget after the lookup wait are not searched.
+     * Rows without a valid ISBN, or whose book is not found, are left out of the resolved chunk,
+     * and their job is marked as partial.
+     *
+     * @param userId User ID
+     * @param chunkFile Chunk file
+     * @return Resolved chunk file, or null if no row is resolved
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private File resolveBooks(String userId, File chunkFile) throws IOException, InterruptedException {
+        // Read the rows of the chunk with their ISBN, from the columns named ISBN or ISBN13
+        String header;
+        int rowCount = 0;
+        final Map<String, String> isbnMap = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(chunkFile), Charsets.UTF_8))) {
+            header = CsvUtil.readRecord(reader);
+            if (header == null) {
+                return null;
+            }
+            List<Integer> isbnColumnList = new ArrayList<>();
+            List<String> headerList = CsvUtil.split(header);
+            for (int i = 0; i < headerList.size(); i++) {
+                String name = headerList.get(i).trim();
+                if (name.equalsIgnoreCase("ISBN") || name.equalsIgnoreCase("ISBN13")) {
+                    isbnColumnList.add(i);
+                }
+            }
+            String record;
+            while ((record = CsvUtil.readRecord(reader)) != null) {
+                rowCount++;
+                List<String> fieldList = CsvUtil.split(record);
+                for (int column : isbnColumnList) {
+                    String isbn13 = column < fieldList.size() ? IsbnUtil.toIsbn13(fieldList.get(column)) : null;
+                    if (isbn13 != null) {
+                        isbnMap.put(record, isbn13);
+                        break;
+                    }
+                }
+            }
+        }
+        if (isbnMap.size() < rowCount) {
+            markPartial(chunkFile);
+        }
+        if (isbnMap.isEmpty()) {
+            return null;
+        }
+
+        // Find the books already in the catalog, in one query
+        final Set<String> catalogIsbnSet = new HashSet<>();
+        TransactionUtil.handle(new Runnable() {
+            @Override
+            public void run() {
+                for (Book book : new BookIsbnDao().getByIsbns(new HashSet<>(isbnMap.values()))) {
+                    catalogIsbnSet.add(IsbnUtil.toIsbn13(book.getIsbn13()));
+                    catalogIsbnSet.add(IsbnUtil.toIsbn13(book.getIsbn10()));
+                }
+            }
+        });
+
+        // Search the missing books in parallel as the budget of the user admits them, then insert them in one transaction
+        Set<String> missingIsbnSet = new LinkedHashSet<>(isbnMap.values());
+        missingIsbnSet.removeAll(catalogIsbnSet);
+        final Map<String, Book> bookMap = new HashMap<>();
+        List<String> remainingList = new ArrayList<>(missingIsbnSet);
+        while (!remainingList.isEmpty()) {
+            int admitted = UserAdmissionControl.getImportInstance().acquire(userId, remainingList.size(), LOOKUP_WAIT);
+            if (admitted == 0) {
+                log.info("Searched " + (missingIsbnSet.size() - remainingList.size()) + " of the " + missingIsbnSet.size()
+                        + " missing books of " + chunkFile + ", the lookup budget is exhausted");
+                break;
+            }
+            List<String> batchList = remainingList.subList(0, admitted);
+            bookMap.putAll(BookLookupService.getInstance().searchBooks(batchList));
+            batchList.clear();
+        }
+        if (!bookMap.isEmpty()) {
+            Set<String> foundIsbnSet = new HashSet<>(bookMap.keySet());
+            boolean committed = TransactionHooks.handle(new Runnable() {
+                @Override
+                public void run() {
+                    // Skip the books added since, by another import or request
+                    for (Book book : new BookIsbnDao().getByIsbns(bookMap.keySet())) {
+                        bookMap.remove(IsbnUtil.toIsbn13(book.getIsbn13()));
+                        bookMap.remove(IsbnUtil.toIsbn13(book.getIsbn10()));
+                    }
+                    BookDao bookDao = new BookDao();
+                    for (Book book : bookMap.values()) {
+                        bookDao.create(book);
+                    }
+                }
+            });
+            if (!committed) {
+                throw new IOException("Error adding the books of " + chunkFile + " to the catalog");
+            }
+            IsbnFilter isbnFilter = IsbnFilter.getInstance();
+            if (isbnFilter != null) {
+                for (Book book : bookMap.values()) {
+                    isbnFilter.put(book);
+                }
+            }
+            catalogIsbnSet.addAll(foundIsbnSet);
+        }
+
+        // Write the resolved rows, next to the chunk
+        File resolvedFile = new File(chunkFile.getPath() + RESOLVED_EXTENSION);
+        int resolvedCount = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resolvedFile), Charsets.UTF_8))) {
+            writer.write(header);
+            for (Map.Entry<String, String> entry : isbnMap.entrySet()) {
+                if (catalogIsbnSet.contains(entry.getValue())) {
+                    writer.write(entry.getKey());
+                    resolvedCount++;
+                }
+            }
+        }
+        if (resolvedCount < isbnMap.size()) {
+            markPartial(chunkFile);
+        }
+        if (resolvedCount == 0) {
+            resolvedFile.delete();
+            return null;
+        }
+        return resolvedFile;
+    }
+
+    /**
+     * Marks the job of a chunk as partial, so that its file can be imported again for the rows left out.
+     *
+     * @param chunkFile Chunk file
+     * @throws IOException
+     */
+    private static void markPartial(File chunkFile) throws IOException {
+        Files.write(new File(chunkFile.getParentFile(), PARTIAL_FILE).toPath(), Collections.<String>emptyList(), Charsets.UTF_8);
+    }
+
+    /**
+     * Reads the next record not imported before, and adds its hash to the seen ones.
+     *
+     * @param reader Reader
+     * @param rowHashSet Hashes of the rows imported before or seen in this import
+     * @return Record, or null at the end of the stream
+     * @throws IOException
+     */
+    private static String nextNewRecord(BufferedReader reader, Set<String> rowHashSet) throws IOException {
+        String record;
+        while ((record = CsvUtil.readRecord(reader)) != null) {
+            if (rowHashSet.add(hashRow(record))) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the hash of a row.
+     *
+     * @param record Record
+     * @return Hash
+     */
+    private static String hashRow(String record) {
+        return Hashing.murmur3_128().hashString(record, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Reads the history of a user, and deletes its files older than the retention time.
+     * Must be called while holding the lock of the user.
+     *
+     * @param userId User ID
+     * @param extension History extension
+     * @return Hashes
+     * @throws IOException
+     */
+    private Set<String> readHistory(String userId, String extension) throws IOException {
+        Set<String> hashSet = new HashSet<>();
+        File[] files = new File(historyDirectory, userId).listFiles();
+        if (files == null) {
+            return hashSet;
+        }
+        long oldestDay = getDay() - HISTORY_RETENTION;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(extension)) {
+                continue;
+            }
+            try {
+                if (Long.parseLong(name.substring(0, name.length() - extension.length())) < oldestDay) {
+                    file.delete();
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            hashSet.addAll(readLines(file));
+        }
+        return hashSet;
+    }
+
+    /**
+     * Appends hashes to the history file of the day of a user.
+     * Must be called while holding the lock of the user.
+     *
+     * @param userId User ID
+     * @param extension History extension
+     * @param hashList Hashes
+     * @throws IOException
+     */
+    private void appendHistory(String userId, String extension, List<String> hashList) throws IOException {
+        appendLines(new File(new File(historyDirectory, userId), getDay() + extension), hashList);
+    }
+
+    /**
+     * Returns the current day, in days since the epoch.
+     *
+     * @return Day
+     */
+    private static long getDay() {
+        return TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the lines of a file.
+     *
+     * @param file File
+     * @return Lines, empty if the file does not exist
+     * @throws IOException
+     */
+    private static Set<String> readLines(File file) throws IOException {
+        Set<String> lineSet = new HashSet<>();
+        if (file.exists()) {
+            lineSet.addAll(Files.readAllLines(file.toPath(), Charsets.UTF_8));
+        }
+        return lineSet;
+    }
+
+    /**
+     * Appends lines to a file.
+     *
+     * @param file File
+     * @param lineList Lines
+     * @throws IOException
+     */
+    private static void appendLines(File file, List<String> lineList) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), lineList, Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Result of the queuing of an import.
+     */
+    public enum EnqueueResult {
+        /**
+         * Import queued, possibly without any new row.
+         */
+        QUEUED,
+
+        /**
+         * Import identical to a previous one, skipped.
+         */
+        DUPLICATE,
+
+        /**
+         * Queue full, import rejected.
+         */
+        FULL
+    }
+
+    /**
+     * Deletes a directory and its files.
+     *
+     * @param directory Directory
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
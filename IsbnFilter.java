@@ -0,0 +1,261 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+import com.sismics.books.core.util.TransactionUtil;
+
+/**
+ * Bloom filter of the ISBNs of the catalog, to skip the database for ISBNs definitely unknown.
+ *
+ * The filter is built from the database in the background, then maintained on book creation
+ * and rebuilt periodically to catch the books created elsewhere. Until the first build is done,
+ * every ISBN might be known.
+ *
+ * The filter is also trusted to skip the duplicate checks before a book is created, so a book
+ * created by another node since the last build could be created again: only enable it
+ * when the books are created by this node.
+ *
+ * Enabled by the system property books.isbn.filter=true.
+ *
+ * @author agent
+ */
+public class IsbnFilter {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(IsbnFilter.class);
+
+    /**
+     * Number of books read by query during a build.
+     */
+    private static final int PAGE_SIZE = 10000;
+
+    /**
+     * Singleton, null if disabled.
+     */
+    private static IsbnFilter instance;
+
+    /**
+     * Expected number of ISBNs.
+     */
+    private final int expectedInsertions;
+
+    /**
+     * Target false positive probability.
+     */
+    private final double fpp;
+
+    /**
+     * Current filter, null until built. Guarded by this.
+     */
+    private BloomFilter<CharSequence> filter;
+
+    /**
+     * Filter being built, receives the ISBNs added during the build. Guarded by this.
+     */
+    private BloomFilter<CharSequence> nextFilter;
+
+    /**
+     * Number of checks answered by the filter.
+     */
+    private final AtomicLong checkCount = new AtomicLong();
+
+    /**
+     * Number of checks answered as definitely unknown.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Number of ISBNs found possibly known by the filter, then unknown by the database.
+     */
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    /**
+     * Constructor of IsbnFilter.
+     *
+     * @param expectedInsertions Expected number of ISBNs
+     * @param fpp Target false positive probability
+     */
+    public IsbnFilter(int expectedInsertions, double fpp) {
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+    }
+
+    /**
+     * Returns the filter, and starts its builds on first call.
+     *
+     * @return Filter, or null if disabled
+     */
+    public static synchronized IsbnFilter getInstance() {
+        if (instance == null && Boolean.getBoolean("books.isbn.filter")) {
+            instance = new IsbnFilter(Integer.getInteger("books.isbn.filter.expectedInsertions", 1000000),
+                    Double.parseDouble(System.getProperty("books.isbn.filter.fpp", "0.01")));
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("isbn-filter-build").setDaemon(true).build());
+            long rebuildInterval = Long.getLong("books.isbn.filter.rebuildInterval", 3600000L);
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    instance.build();
+                }
+            }, 0, rebuildInterval, TimeUnit.MILLISECONDS);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns false if an ISBN is definitely not in the catalog.
+     *
+     * @param isbns ISBNs of a book, in any form, null values are ignored
+     * @return True if one of the ISBNs might be in the catalog
+     */
+    public boolean mightContain(Collection<String> isbns) {
+        synchronized (this) {
+            if (filter == null) {
+                return true;
+            }
+            checkCount.incrementAndGet();
+            for (String isbn : isbns) {
+                String key = toKey(isbn);
+                if (key != null && filter.mightContain(key)) {
+                    return true;
+                }
+            }
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adds the ISBNs of a book.
+     *
+     * @param book Book
+     */
+    public synchronized void put(Book book) {
+        for (String isbn : new String[] { book.getIsbn10(), book.getIsbn13() }) {
+            String key = toKey(isbn);
+            if (key == null) {
+                continue;
+            }
+            if (filter != null) {
+                filter.put(key);
+            }
+            if (nextFilter != null) {
+                nextFilter.put(key);
+            }
+        }
+    }
+
+    /**
+     * Records an ISBN found possibly known by the filter, then unknown by the database.
+     */
+    public synchronized void recordFalsePositive() {
+        if (filter != null) {
+            falsePositiveCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the false positive probability expected from the filter fill.
+     *
+     * @return Expected false positive probability, 1 until built
+     */
+    public synchronized double getExpectedFpp() {
+        return filter == null ? 1 : filter.expectedFpp();
+    }
+
+    public long getCheckCount() {
+        return checkCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+
+    /**
+     * Builds a new filter from the database, then replaces the current one.
+     */
+    private void build() {
+        try {
+            synchronized (this) {
+                nextFilter = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedInsertions, fpp);
+            }
+            final BookIsbnDao bookIsbnDao = new BookIsbnDao();
+            String lastId = null;
+            while (true) {
+                final String afterId = lastId;
+                final List<String> isbnList = new ArrayList<>();
+                final String[] pageLastId = new String[1];
+                final boolean[] read = { false };
+                TransactionUtil.handle(new Runnable() {
+                    @Override
+                    public void run() {
+                        pageLastId[0] = bookIsbnDao.getIsbnPage(afterId, PAGE_SIZE, isbnList);
+                        read[0] = true;
+                    }
+                });
+                if (!read[0]) {
+                    throw new IllegalStateException("Error reading the ISBNs after the book " + afterId);
+                }
+                if (pageLastId[0] == null) {
+                    break;
+                }
+                synchronized (this) {
+                    for (String isbn : isbnList) {
+                        String key = toKey(isbn);
+                        if (key != null) {
+                            nextFilter.put(key);
+                        }
+                    }
+                }
+                lastId = pageLastId[0];
+            }
+            synchronized (this) {
+                filter = nextFilter;
+                nextFilter = null;
+                if (filter.expectedFpp() > fpp) {
+                    log.warn("ISBN filter over capacity, expected false positive probability: " + filter.expectedFpp());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error building the ISBN filter", e);
+            synchronized (this) {
+                nextFilter = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the filter key of an ISBN: its ISBN-13 form if valid, else the cleaned value.
+     *
+     * @param isbn ISBN
+     * @return Key, or null if empty
+     */
+    private static String toKey(String isbn) {
+        String isbn13 = IsbnUtil.toIsbn13(isbn);
+        if (isbn13 != null) {
+            return isbn13;
+        }
+        String cleaned = IsbnUtil.clean(isbn);
+        return cleaned == null || cleaned.isEmpty() ? null : cleaned;
+    }
+}
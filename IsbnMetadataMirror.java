@@ -0,0 +1,318 @@
+package com.sismics.books.core.service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.UUID;
+
+import com.google.common.base.Strings;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+
+/**
+ * Local, read-only ISBN metadata store.
+ *
+ * The mirror is made of two memory-mapped files built from a dump:
+ * <ul>
+ * <li>an index of (ISBN-13, record offset) pairs sorted by ISBN, 16 bytes per entry</li>
+ * <li>a data file of length-prefixed UTF-8 records</li>
+ * </ul>
+ * A lookup is a binary search in the index, and the heap only holds the mappings.
+ *
+ * The dump is a tab-separated file with one book per line:
+ * isbn13, isbn10, title, subtitle, author, publish date (yyyy-MM-dd), page count, language.
+ *
+ * @author agent
+ */
+public class IsbnMetadataMirror implements BookLookupProvider {
+    /**
+     * Size of an index entry, in bytes.
+     */
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     * Size of a data file mapping, in bytes. Records never cross a chunk boundary.
+     */
+    private static final long CHUNK_SIZE = 1 << 30;
+
+    /**
+     * Number of fields in a record.
+     */
+    private static final int FIELD_COUNT = 8;
+
+    /**
+     * Mapped index.
+     */
+    private final MappedByteBuffer index;
+
+    /**
+     * Number of index entries.
+     */
+    private final int entryCount;
+
+    /**
+     * Mapped data chunks.
+     */
+    private final MappedByteBuffer[] dataChunks;
+
+    /**
+     * Opens a mirror.
+     *
+     * @param baseFile Base file, the mirror is stored in baseFile.idx and baseFile.dat
+     * @throws IOException
+     */
+    public IsbnMetadataMirror(File baseFile) throws IOException {
+        try (RandomAccessFile indexFile = new RandomAccessFile(indexFile(baseFile), "r");
+                RandomAccessFile dataFile = new RandomAccessFile(dataFile(baseFile), "r")) {
+            FileChannel indexChannel = indexFile.getChannel();
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            entryCount = (int) (indexChannel.size() / ENTRY_SIZE);
+
+            FileChannel dataChannel = dataFile.getChannel();
+            long dataSize = dataChannel.size();
+            dataChunks = new MappedByteBuffer[(int) ((dataSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < dataChunks.length; i++) {
+                long position = i * CHUNK_SIZE;
+                dataChunks[i] = dataChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, dataSize - position));
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "mirror";
+    }
+
+    @Override
+    public Book searchBook(String isbn) {
+        String isbn13 = IsbnUtil.toIsbn13(isbn);
+        if (isbn13 == null) {
+            return null;
+        }
+        long offset = findOffset(Long.parseLong(isbn13));
+        if (offset < 0) {
+            return null;
+        }
+        return toBook(readRecord(offset));
+    }
+
+    /**
+     * Finds a record offset by binary search in the index.
+     *
+     * @param key ISBN-13 as a number
+     * @return Record offset, or -1 if not found
+     */
+    private long findOffset(long key) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = index.getLong(mid * ENTRY_SIZE);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return index.getLong(mid * ENTRY_SIZE + 8);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a record.
+     *
+     * @param offset Record offset in the data file
+     * @return Record fields
+     */
+    private String[] readRecord(long offset) {
+        ByteBuffer chunk = dataChunks[(int) (offset / CHUNK_SIZE)].duplicate();
+        chunk.position((int) (offset % CHUNK_SIZE));
+        byte[] bytes = new byte[chunk.getInt()];
+        chunk.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).split("\t", -1);
+    }
+
+    /**
+     * Converts record fields to a book.
+     *
+     * @param fields Record fields
+     * @return Book
+     */
+    private static Book toBook(String[] fields) {
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setIsbn13(emptyToNull(fields[0]));
+        book.setIsbn10(emptyToNull(fields[1]));
+        book.setTitle(emptyToNull(fields[2]));
+        book.setSubtitle(emptyToNull(fields[3]));
+        book.setAuthor(emptyToNull(fields[4]));
+        if (!Strings.isNullOrEmpty(fields[5])) {
+            try {
+                book.setPublishDate(new SimpleDateFormat("yyyy-MM-dd").parse(fields[5]));
+            } catch (ParseException e) {
+                // Leave the publish date empty
+            }
+        }
+        if (!Strings.isNullOrEmpty(fields[6])) {
+            try {
+                long pageCount = Long.parseLong(fields[6].trim());
+                if (pageCount > 0) {
+                    book.setPageCount(pageCount);
+                }
+            } catch (NumberFormatException e) {
+                // Leave the page count empty
+            }
+        }
+        book.setLanguage(emptyToNull(fields[7]));
+        return book;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static File indexFile(File baseFile) {
+        return new File(baseFile.getPath() + ".idx");
+    }
+
+    private static File dataFile(File baseFile) {
+        return new File(baseFile.getPath() + ".dat");
+    }
+
+    /**
+     * Builds a mirror from a dump file.
+     * Lines without a valid ISBN are skipped, and the first line wins for duplicate ISBNs.
+     *
+     * @param dumpFile Dump file
+     * @param baseFile Base file of the mirror
+     * @return Number of books in the mirror
+     * @throws IOException
+     */
+    public static int build(File dumpFile, File baseFile) throws IOException {
+        long[] keys = new long[1024];
+        long[] offsets = new long[1024];
+        int count = 0;
+
+        // Write the records and collect their keys
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dumpFile), StandardCharsets.UTF_8));
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile(baseFile))))) {
+            long offset = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < FIELD_COUNT) {
+                    continue;
+                }
+                String isbn13 = IsbnUtil.toIsbn13(fields[0]);
+                if (isbn13 == null) {
+                    isbn13 = IsbnUtil.toIsbn13(fields[1]);
+                }
+                if (isbn13 == null) {
+                    continue;
+                }
+
+                byte[] record = line.getBytes(StandardCharsets.UTF_8);
+                if (offset / CHUNK_SIZE != (offset + 4 + record.length - 1) / CHUNK_SIZE) {
+                    // Pad to the next chunk
+                    while (offset % CHUNK_SIZE != 0) {
+                        data.write(0);
+                        offset++;
+                    }
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                keys[count] = Long.parseLong(isbn13);
+                offsets[count] = offset;
+                count++;
+                data.writeInt(record.length);
+                data.write(record);
+                offset += 4 + record.length;
+            }
+        }
+
+        // Write the sorted index
+        sort(keys, offsets, 0, count - 1);
+        int written = 0;
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(baseFile))))) {
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && keys[i] == keys[i - 1]) {
+                    continue;
+                }
+                index.writeLong(keys[i]);
+                index.writeLong(offsets[i]);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Sorts keys and offsets by key, then by offset.
+     */
+    private static void sort(long[] keys, long[] offsets, int low, int high) {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long pivotKey = keys[mid];
+            long pivotOffset = offsets[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivotKey || keys[i] == pivotKey && offsets[i] < pivotOffset) {
+                    i++;
+                }
+                while (keys[j] > pivotKey || keys[j] == pivotKey && offsets[j] > pivotOffset) {
+                    j--;
+                }
+                if (i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    long offset = offsets[i];
+                    offsets[i] = offsets[j];
+                    offsets[j] = offset;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse on the smaller side
+            if (j - low < high - i) {
+                sort(keys, offsets, low, j);
+                low = i;
+            } else {
+                sort(keys, offsets, i, high);
+                high = j;
+            }
+        }
+    }
+
+    /**
+     * Builds a mirror from the command line.
+     *
+     * @param args Dump file and base file of the mirror
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: IsbnMetadataMirror <dump file> <mirror base file>");
+            System.exit(1);
+        }
+        int count = build(new File(args[0]), new File(args[1]));
+        System.out.println(count + " books written to " + args[1]);
+    }
+}
@@ -0,0 +1,100 @@
+package com.sismics.books.core.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+
+/**
+ * ISBN utilities.
+ *
+ * @author agent
+ */
+public class IsbnUtil {
+    /**
+     * Removes everything but digits and the ISBN-10 check character.
+     *
+     * @param isbn Raw ISBN
+     * @return Cleaned ISBN, or null
+     */
+    public static String clean(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        return isbn.toUpperCase().replaceAll("[^0-9X]", "");
+    }
+
+    /**
+     * Converts an ISBN to its ISBN-13 form.
+     *
+     * @param isbn ISBN-10 or ISBN-13
+     * @return ISBN-13, or null if the input is not a well-formed ISBN
+     */
+    public static String toIsbn13(String isbn) {
+        isbn = clean(isbn);
+        if (isbn == null) {
+            return null;
+        }
+        if (isbn.length() == 13 && isbn.matches("[0-9]{13}")) {
+            return isbn;
+        }
+        if (isbn.length() != 10 || !isbn.matches("[0-9]{9}[0-9X]")) {
+            return null;
+        }
+        String isbn13 = "978" + isbn.substring(0, 9);
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (isbn13.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return isbn13 + (10 - sum % 10) % 10;
+    }
+
+    /**
+     * Converts an ISBN to its ISBN-10 form.
+     * Only ISBN-13 with the 978 prefix have an ISBN-10 form.
+     *
+     * @param isbn ISBN-10 or ISBN-13
+     * @return ISBN-10, or null if there is none
+     */
+    public static String toIsbn10(String isbn) {
+        String isbn13 = toIsbn13(isbn);
+        if (isbn13 == null || !isbn13.startsWith("978")) {
+            return null;
+        }
+        String isbn10 = isbn13.substring(3, 12);
+        int sum = 0;
+        for (int i = 0; i < 9; i++) {
+            sum += (isbn10.charAt(i) - '0') * (10 - i);
+        }
+        int check = (11 - sum % 11) % 11;
+        return isbn10 + (check == 10 ? "X" : Integer.toString(check));
+    }
+
+    /**
+     * Returns all the forms an ISBN can be stored as: as given, cleaned, ISBN-10 and ISBN-13.
+     *
+     * @param isbns ISBNs, null values are ignored
+     * @return ISBN forms
+     */
+    public static Set<String> getVariants(Collection<String> isbns) {
+        Set<String> variantSet = new HashSet<>();
+        for (String isbn : isbns) {
+            if (Strings.isNullOrEmpty(isbn)) {
+                continue;
+            }
+            variantSet.add(isbn);
+            variantSet.add(clean(isbn));
+            String isbn13 = toIsbn13(isbn);
+            if (isbn13 != null) {
+                variantSet.add(isbn13);
+            }
+            String isbn10 = toIsbn10(isbn);
+            if (isbn10 != null) {
+                variantSet.add(isbn10);
+            }
+        }
+        variantSet.remove("");
+        return variantSet;
+    }
+}
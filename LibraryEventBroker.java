@@ -0,0 +1,252 @@
+package com.sismics.books.core.service;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Pushes library events to the subscribers of each user.
+ *
+ * Each subscription has a bounded buffer. A subscriber too slow to drain it
+ * is marked as overflowed, and must resync instead of receiving the following events.
+ *
+ * A subscription is created by an authenticated request, then held under a one-time
+ * ticket until its stream claims it, so that no event is lost in between. A subscription
+ * not claimed in time is ended. Streams are written asynchronously and hold no container
+ * thread, a subscription only costs its buffer.
+ *
+ * @author agent
+ */
+public class LibraryEventBroker {
+    /**
+     * Singleton.
+     */
+    private static final LibraryEventBroker instance = new LibraryEventBroker(
+            Integer.getInteger("books.events.maxConnections", 10000),
+            Integer.getInteger("books.events.bufferSize", 64),
+            Long.getLong("books.events.ticketTimeout", 30000L));
+
+    /**
+     * Subscriptions by user ID, changed under the lock of this broker and read without it.
+     */
+    private final ConcurrentMap<String, Set<Subscription>> subscriptionMap = new ConcurrentHashMap<>();
+
+    /**
+     * Number of subscriptions, guarded by this.
+     */
+    private volatile int subscriptionCount;
+
+    /**
+     * Maximum number of subscriptions.
+     */
+    private final int maxSubscriptions;
+
+    /**
+     * Size of a subscription buffer, in events.
+     */
+    private final int bufferSize;
+
+    /**
+     * Subscriptions not claimed yet by their stream, by ticket.
+     */
+    private final Cache<String, Subscription> heldSubscriptionCache;
+
+    /**
+     * Constructor of LibraryEventBroker.
+     *
+     * @param maxSubscriptions Maximum number of subscriptions
+     * @param bufferSize Size of a subscription buffer, in events
+     * @param ticketTimeout Time to claim a held subscription, in milliseconds
+     */
+    public LibraryEventBroker(int maxSubscriptions, int bufferSize, long ticketTimeout) {
+        this.maxSubscriptions = maxSubscriptions;
+        this.bufferSize = bufferSize;
+        this.heldSubscriptionCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ticketTimeout, TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<String, Subscription>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Subscription> notification) {
+                        if (notification.getCause() != RemovalCause.EXPLICIT) {
+                            unsubscribe(notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the event broker.
+     *
+     * @return Event broker
+     */
+    public static LibraryEventBroker getInstance() {
+        return instance;
+    }
+
+    /**
+     * Subscribes to the events of a user.
+     *
+     * @param userId User ID
+     * @return Subscription, or null if the maximum number of subscriptions is reached
+     */
+    public synchronized Subscription subscribe(String userId) {
+        if (subscriptionCount >= maxSubscriptions) {
+            return null;
+        }
+        Set<Subscription> subscriptionSet = subscriptionMap.get(userId);
+        if (subscriptionSet == null) {
+            subscriptionSet = new CopyOnWriteArraySet<>();
+            subscriptionMap.put(userId, subscriptionSet);
+        }
+        Subscription subscription = new Subscription(userId, bufferSize);
+        subscriptionSet.add(subscription);
+        subscriptionCount++;
+        return subscription;
+    }
+
+    /**
+     * Ends a subscription. Does nothing if already ended.
+     *
+     * @param subscription Subscription
+     */
+    public synchronized void unsubscribe(Subscription subscription) {
+        Set<Subscription> subscriptionSet = subscriptionMap.get(subscription.userId);
+        if (subscriptionSet != null && subscriptionSet.remove(subscription)) {
+            subscriptionCount--;
+            if (subscriptionSet.isEmpty()) {
+                subscriptionMap.remove(subscription.userId);
+            }
+        }
+    }
+
+    /**
+     * Holds a subscription until its stream claims it.
+     *
+     * @param subscription Subscription
+     * @return One-time ticket to claim the subscription
+     */
+    public String hold(Subscription subscription) {
+        String ticket = UUID.randomUUID().toString();
+        heldSubscriptionCache.put(ticket, subscription);
+        return ticket;
+    }
+
+    /**
+     * Claims a held subscription.
+     *
+     * @param ticket Ticket returned by hold()
+     * @return Subscription, or null if the ticket is unknown, expired or already used
+     */
+    public Subscription claim(String ticket) {
+        return ticket == null ? null : heldSubscriptionCache.asMap().remove(ticket);
+    }
+
+    /**
+     * Ends the held subscriptions not claimed in time.
+     */
+    public void cleanUp() {
+        heldSubscriptionCache.cleanUp();
+    }
+
+    /**
+     * Publishes an event to all the subscribers of a user. Never blocks.
+     *
+     * @param userId User ID
+     * @param type Event type
+     * @param data Event data, in JSON
+     */
+    public void publish(String userId, String type, String data) {
+        Set<Subscription> subscriptionSet = subscriptionMap.get(userId);
+        if (subscriptionSet == null) {
+            return;
+        }
+        String event = "event: " + type + "\ndata: " + data + "\n\n";
+        for (Subscription subscription : subscriptionSet) {
+            if (!subscription.queue.offer(event)) {
+                subscription.overflowed = true;
+            }
+            Runnable listener = subscription.listener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of subscriptions.
+     *
+     * @return Number of subscriptions
+     */
+    public int getSubscriptionCount() {
+        return subscriptionCount;
+    }
+
+    /**
+     * Subscription to the events of a user.
+     */
+    public static class Subscription {
+        /**
+         * User ID.
+         */
+        private final String userId;
+
+        /**
+         * Pending events, in server-sent events format.
+         */
+        private final BlockingQueue<String> queue;
+
+        /**
+         * True if events have been dropped.
+         */
+        private volatile boolean overflowed;
+
+        /**
+         * Notified after each event published, must not block.
+         */
+        private volatile Runnable listener;
+
+        private Subscription(String userId, int bufferSize) {
+            this.userId = userId;
+            this.queue = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        /**
+         * Returns the next event, without waiting.
+         *
+         * @return Event in server-sent events format, or null if there is none
+         */
+        public String poll() {
+            return queue.poll();
+        }
+
+        /**
+         * Sets the action notified after each event published to this subscription.
+         * Events published before are only in the buffer.
+         *
+         * @param listener Action, must not block
+         */
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Returns true if events have been dropped because the buffer was full.
+         *
+         * @return Overflowed
+         */
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+    }
+}
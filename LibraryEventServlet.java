@@ -0,0 +1,275 @@
+package com.sismics.books.rest.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.service.LibraryEventBroker;
+import com.sismics.books.core.service.LibraryEventBroker.Subscription;
+
+/**
+ * Streams the library events of a user, in server-sent events format.
+ *
+ * The stream is opened with the ticket of a subscription held by the authenticated
+ * events resource, which redirects here. It is mapped outside of the API filters of
+ * web.xml, which are not asynchronous, and holds neither a container thread nor a
+ * database connection: events are written by a small pool of writer threads when they
+ * are published, and heartbeats by a scheduler.
+ *
+ * The stream sends a reset event and ends if the client is too slow to read it,
+ * the client must then resync with the changes endpoint.
+ *
+ * @author agent
+ */
+@WebServlet(urlPatterns = LibraryEventServlet.PATH, asyncSupported = true)
+public class LibraryEventServlet extends HttpServlet {
+    /**
+     * Serial version UID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Path of the servlet, relative to the context path.
+     */
+    public static final String PATH = "/events";
+
+    /**
+     * Interval between two heartbeats of an event stream, in milliseconds.
+     */
+    public static final long HEARTBEAT = Long.getLong("books.events.heartbeat", 15000L);
+
+    /**
+     * Maximum duration of an event stream, in milliseconds.
+     */
+    private static final long MAX_DURATION = Long.getLong("books.events.maxDuration", 1800000L);
+
+    /**
+     * Number of threads writing the event streams.
+     */
+    private static final int WRITER_THREADS = Integer.getInteger("books.events.writerThreads", 4);
+
+    /**
+     * Open streams.
+     */
+    private final Set<EventStream> streamSet = Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
+
+    /**
+     * Writer threads.
+     */
+    private ExecutorService writerExecutor;
+
+    /**
+     * Heartbeat scheduler.
+     */
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @Override
+    public void init() {
+        writerExecutor = Executors.newFixedThreadPool(WRITER_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("event-writer-%d").setDaemon(true).build());
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("event-heartbeat-%d").setDaemon(true).build());
+        heartbeatExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                LibraryEventBroker.getInstance().cleanUp();
+                for (EventStream stream : streamSet) {
+                    stream.heartbeatDue = true;
+                    stream.schedule();
+                }
+            }
+        }, HEARTBEAT, HEARTBEAT, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        heartbeatExecutor.shutdownNow();
+        for (EventStream stream : streamSet) {
+            stream.close();
+        }
+        writerExecutor.shutdownNow();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Subscription subscription = LibraryEventBroker.getInstance().claim(request.getParameter("ticket"));
+        if (subscription == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        // The client reconnects by itself once the stream ends
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(MAX_DURATION);
+        final EventStream stream = new EventStream(subscription, asyncContext);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                stream.close();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                stream.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                stream.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // NOP
+            }
+        });
+        streamSet.add(stream);
+
+        // Write the events published since the subscription, then each one when published
+        stream.write("retry: " + HEARTBEAT + "\n\n");
+        subscription.setListener(new Runnable() {
+            @Override
+            public void run() {
+                stream.schedule();
+            }
+        });
+        stream.schedule();
+    }
+
+    /**
+     * Event stream of a subscription.
+     */
+    private class EventStream {
+        /**
+         * Subscription.
+         */
+        private final Subscription subscription;
+
+        /**
+         * Asynchronous request.
+         */
+        private final AsyncContext asyncContext;
+
+        /**
+         * True if a flush is scheduled and not started yet.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * True if a heartbeat is due, written only if no event is written first.
+         */
+        private volatile boolean heartbeatDue;
+
+        /**
+         * True once closed, guarded by this.
+         */
+        private boolean closed;
+
+        private EventStream(Subscription subscription, AsyncContext asyncContext) {
+            this.subscription = subscription;
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Schedules a flush of the stream on the writer threads, unless one is already pending.
+         */
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                writerExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduled.set(false);
+                        flush();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Servlet destroyed, the stream is closed
+            }
+        }
+
+        /**
+         * Writes the pending events, a heartbeat if due and nothing else was written,
+         * or a reset if events have been dropped.
+         */
+        private synchronized void flush() {
+            if (subscription.isOverflowed()) {
+                write("event: reset\ndata: {}\n\n");
+                close();
+                return;
+            }
+            String event;
+            while ((event = subscription.poll()) != null) {
+                write(event);
+                heartbeatDue = false;
+            }
+            if (heartbeatDue) {
+                // Send a comment as heartbeat if there was no event
+                write(":\n\n");
+                heartbeatDue = false;
+            }
+        }
+
+        /**
+         * Writes and flushes a chunk of the stream. Closes the stream on error.
+         *
+         * @param chunk Chunk
+         */
+        private synchronized void write(String chunk) {
+            if (closed) {
+                return;
+            }
+            try {
+                OutputStream outputStream = asyncContext.getResponse().getOutputStream();
+                outputStream.write(chunk.getBytes(Charsets.UTF_8));
+                outputStream.flush();
+            } catch (IOException | IllegalStateException e) {
+                // Client gone, or request completed in the meantime
+                close();
+            }
+        }
+
+        /**
+         * Ends the subscription and completes the request. Does nothing if already closed.
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            streamSet.remove(this);
+            LibraryEventBroker.getInstance().unsubscribe(subscription);
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container
+            }
+        }
+    }
+}
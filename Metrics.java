@@ -0,0 +1,352 @@
+package com.sismics.books.rest.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process metrics registry, exported in Prometheus text format.
+ *
+ * Latencies are recorded in log-linear buckets (two sub-buckets per power of two
+ * between 64 microseconds and 32 seconds), so percentiles are accurate to within 50% of the value.
+ *
+ * @author agent
+ */
+public class Metrics {
+    /**
+     * Latency bucket upper bounds, in microseconds.
+     */
+    private static final long[] LATENCY_BOUNDS = latencyBounds();
+
+    /**
+     * Count bucket upper bounds.
+     */
+    private static final long[] COUNT_BOUNDS = { 0, 1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144 };
+
+    /**
+     * Histograms, by metric name then by label set.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histogramMap = new ConcurrentSkipListMap<>();
+
+    /**
+     * Counters, by metric name then by label set.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counterMap = new ConcurrentSkipListMap<>();
+
+    /**
+     * Values collected from other components, by metric name then by label set.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Double>> valueMap = new ConcurrentSkipListMap<>();
+
+    /**
+     * Types of the collected values, by metric name.
+     */
+    private static final ConcurrentMap<String, String> valueTypeMap = new ConcurrentSkipListMap<>();
+
+    /**
+     * Request being served by the current thread.
+     */
+    private static final ThreadLocal<Request> currentRequest = new ThreadLocal<>();
+
+    /**
+     * Starts measuring a request.
+     *
+     * @param endpoint Endpoint name
+     * @return Request measure, to be stopped in a finally block
+     */
+    public static Request startRequest(String endpoint) {
+        Request request = new Request(endpoint);
+        currentRequest.set(request);
+        return request;
+    }
+
+    /**
+     * Counts an SQL statement prepared on behalf of the current request.
+     *
+     * @param sql SQL statement
+     */
+    public static void statement(String sql) {
+        Request request = currentRequest.get();
+        String endpoint = request == null ? "none" : request.endpoint;
+        if (request != null) {
+            request.statementCount++;
+        }
+        increment("books_db_statements_total", labels("endpoint", endpoint, "statement", getStatementType(sql)));
+    }
+
+    /**
+     * Records the latency of a call to an external service.
+     *
+     * @param operation Operation name
+     * @param startTime Start time, from System.nanoTime()
+     */
+    public static void observeExternal(String operation, long startTime) {
+        observeLatency("books_external_call_duration_seconds", labels("operation", operation), startTime);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param name Metric name
+     * @param labels Label set
+     * @param startTime Start time, from System.nanoTime()
+     */
+    public static void observeLatency(String name, String labels, long startTime) {
+        long micros = (System.nanoTime() - startTime) / 1000;
+        histogram(name, labels, LATENCY_BOUNDS, 1e-6).observe(micros);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param name Metric name
+     * @param labels Label set
+     */
+    public static void increment(String name, String labels) {
+        add(name, labels, 1);
+    }
+
+    /**
+     * Adds a value to a counter.
+     *
+     * @param name Metric name
+     * @param labels Label set
+     * @param delta Value to add
+     */
+    public static void add(String name, String labels, long delta) {
+        ConcurrentMap<String, AtomicLong> counters = counterMap.get(name);
+        if (counters == null) {
+            counterMap.putIfAbsent(name, new ConcurrentSkipListMap<String, AtomicLong>());
+            counters = counterMap.get(name);
+        }
+        AtomicLong counter = counters.get(labels);
+        if (counter == null) {
+            counters.putIfAbsent(labels, new AtomicLong());
+            counter = counters.get(labels);
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Sets a value collected from another component, such as a cache size or hit count.
+     *
+     * @param name Metric name
+     * @param type Prometheus type: counter or gauge
+     * @param labels Label set
+     * @param value Value
+     */
+    public static void setValue(String name, String type, String labels, double value) {
+        ConcurrentMap<String, Double> values = valueMap.get(name);
+        if (values == null) {
+            valueTypeMap.putIfAbsent(name, type);
+            valueMap.putIfAbsent(name, new ConcurrentSkipListMap<String, Double>());
+            values = valueMap.get(name);
+        }
+        values.put(labels, value);
+    }
+
+    /**
+     * Formats a label set.
+     *
+     * @param keyValues Alternating label names and values
+     * @return Label set
+     */
+    public static String labels(String... keyValues) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(keyValues[i]).append("=\"")
+                    .append(keyValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes all metrics in Prometheus text format.
+     *
+     * @return Metrics
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> entry : counterMap.entrySet()) {
+            sb.append("# TYPE ").append(entry.getKey()).append(" counter\n");
+            for (Map.Entry<String, AtomicLong> counter : entry.getValue().entrySet()) {
+                appendSample(sb, entry.getKey(), counter.getKey(), null, Long.toString(counter.getValue().get()));
+            }
+        }
+        for (Map.Entry<String, ConcurrentMap<String, Double>> entry : valueMap.entrySet()) {
+            sb.append("# TYPE ").append(entry.getKey()).append(' ').append(valueTypeMap.get(entry.getKey())).append('\n');
+            for (Map.Entry<String, Double> value : entry.getValue().entrySet()) {
+                appendSample(sb, entry.getKey(), value.getKey(), null, Double.toString(value.getValue()));
+            }
+        }
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> entry : histogramMap.entrySet()) {
+            sb.append("# TYPE ").append(entry.getKey()).append(" histogram\n");
+            for (Map.Entry<String, Histogram> histogram : entry.getValue().entrySet()) {
+                histogram.getValue().write(sb, entry.getKey(), histogram.getKey());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a histogram, creating it if needed.
+     *
+     * @param name Metric name
+     * @param labels Label set
+     * @param bounds Bucket upper bounds
+     * @param scale Scale applied to the bounds and sum on export
+     * @return Histogram
+     */
+    private static Histogram histogram(String name, String labels, long[] bounds, double scale) {
+        ConcurrentMap<String, Histogram> histograms = histogramMap.get(name);
+        if (histograms == null) {
+            histogramMap.putIfAbsent(name, new ConcurrentSkipListMap<String, Histogram>());
+            histograms = histogramMap.get(name);
+        }
+        Histogram histogram = histograms.get(labels);
+        if (histogram == null) {
+            histograms.putIfAbsent(labels, new Histogram(bounds, scale));
+            histogram = histograms.get(labels);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the type of an SQL statement, its first keyword, to keep the label set bounded.
+     *
+     * @param sql SQL statement
+     * @return Statement type
+     */
+    private static String getStatementType(String sql) {
+        String trimmed = sql.trim();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        String type = trimmed.substring(0, end).toLowerCase(Locale.ENGLISH);
+        switch (type) {
+        case "select":
+        case "insert":
+        case "update":
+        case "delete":
+            return type;
+        default:
+            return "other";
+        }
+    }
+
+    /**
+     * Appends a sample line.
+     */
+    private static void appendSample(StringBuilder sb, String name, String labels, String extraLabel, String value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            sb.append('{').append(labels);
+            if (extraLabel != null) {
+                sb.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Builds the latency bucket bounds: 2^n and 1.5 * 2^n microseconds, from 64 microseconds to 32 seconds.
+     */
+    private static long[] latencyBounds() {
+        TreeSet<Long> boundSet = new TreeSet<>();
+        for (int n = 6; n <= 25; n++) {
+            boundSet.add(1L << n);
+            boundSet.add(3L << (n - 1));
+        }
+        long[] bounds = new long[boundSet.size()];
+        int i = 0;
+        for (Long bound : boundSet) {
+            bounds[i++] = bound;
+        }
+        return bounds;
+    }
+
+    /**
+     * Measure of a single request.
+     */
+    public static class Request {
+        private String endpoint;
+
+        private final long startTime = System.nanoTime();
+
+        private int statementCount;
+
+        private Request(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Changes the endpoint label of the request, once it is known.
+         *
+         * @param endpoint Endpoint name
+         */
+        public void setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Records the request latency and SQL statement count.
+         */
+        public void stop() {
+            String labels = labels("endpoint", endpoint);
+            observeLatency("books_http_request_duration_seconds", labels, startTime);
+            histogram("books_db_statements_per_request", labels, COUNT_BOUNDS, 1).observe(statementCount);
+            currentRequest.remove();
+        }
+    }
+
+    /**
+     * Lock-free fixed-bucket histogram.
+     */
+    private static class Histogram {
+        private final long[] bounds;
+
+        private final double scale;
+
+        /**
+         * Non-cumulative bucket counts, the last one is +Inf.
+         */
+        private final AtomicLongArray counts;
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram(long[] bounds, double scale) {
+            this.bounds = bounds;
+            this.scale = scale;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        private void observe(long value) {
+            int index = Arrays.binarySearch(bounds, value);
+            counts.incrementAndGet(index >= 0 ? index : -index - 1);
+            sum.addAndGet(value);
+        }
+
+        private void write(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts.get(i);
+                appendSample(sb, name + "_bucket", labels, "le=\"" + bounds[i] * scale + "\"", Long.toString(cumulative));
+            }
+            cumulative += counts.get(bounds.length);
+            appendSample(sb, name + "_bucket", labels, "le=\"+Inf\"", Long.toString(cumulative));
+            appendSample(sb, name + "_sum", labels, null, Double.toString(sum.get() * scale));
+            appendSample(sb, name + "_count", labels, null, Long.toString(cumulative));
+        }
+    }
+}
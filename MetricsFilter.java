@@ -0,0 +1,68 @@
+package com.sismics.books.rest.util;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Filter measuring the latency and the SQL statement count of each request.
+ *
+ * The endpoint label is the method and the path, with the IDs replaced by a placeholder,
+ * and requests to unknown paths share a single label.
+ * Mapped before the filters of web.xml by MetricsListener.
+ *
+ * @author agent
+ */
+public class MetricsFilter implements Filter {
+    /**
+     * Path segments containing an ID.
+     */
+    private static final Pattern ID_PATTERN = Pattern.compile("/[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(?=/|$)");
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        // NOP
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        Metrics.Request metrics = Metrics.startRequest(getEndpoint(httpRequest));
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (response instanceof HttpServletResponse && ((HttpServletResponse) response).getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+                metrics.setEndpoint("unknown");
+            }
+            metrics.stop();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // NOP
+    }
+
+    /**
+     * Returns the endpoint label of a request.
+     *
+     * @param request Request
+     * @return Endpoint label
+     */
+    private static String getEndpoint(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return request.getMethod() + " " + ID_PATTERN.matcher(path).replaceAll("/{id}");
+    }
+}
@@ -0,0 +1,45 @@
+package com.sismics.books.rest.util;
+
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterRegistration;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Registers the request and statement metrics with the web application.
+ *
+ * The metrics filter is mapped before every filter declared in web.xml, so that it wraps
+ * the request transaction it measures. The statement interceptor is given to Hibernate
+ * with the hibernate.ejb.interceptor property, before the entity manager factory is created
+ * by the filters, unless the property is already set.
+ *
+ * @author agent
+ */
+@WebListener
+public class MetricsListener implements ServletContextListener {
+    /**
+     * Hibernate property of the entity manager interceptor.
+     */
+    private static final String INTERCEPTOR_PROPERTY = "hibernate.ejb.interceptor";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        if (System.getProperty(INTERCEPTOR_PROPERTY) == null) {
+            System.setProperty(INTERCEPTOR_PROPERTY, StatementMetricsInterceptor.class.getName());
+        }
+
+        FilterRegistration.Dynamic registration = sce.getServletContext().addFilter("metricsFilter", MetricsFilter.class);
+        if (registration != null) {
+            registration.setAsyncSupported(true);
+            registration.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, "/*");
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        // NOP
+    }
+}
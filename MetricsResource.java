@@ -0,0 +1,78 @@
+package com.sismics.books.rest.resource;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import com.google.common.cache.CacheStats;
+import com.sismics.books.core.dao.jpa.BookCache;
+import com.sismics.books.core.dao.jpa.IsbnFilter;
+import com.sismics.books.core.service.ImportQueue;
+import com.sismics.books.core.service.LibraryEventBroker;
+import com.sismics.books.rest.util.Metrics;
+import com.sismics.rest.exception.ForbiddenClientException;
+
+/**
+ * Metrics REST resources.
+ *
+ * @author agent
+ */
+@Path("/metrics")
+public class MetricsResource extends BaseResource {
+    /**
+     * Returns all metrics in Prometheus text format.
+     * Only available from the local host.
+     *
+     * @return Response
+     */
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public Response metrics() {
+        try {
+            if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+                throw new ForbiddenClientException();
+            }
+        } catch (UnknownHostException e) {
+            throw new ForbiddenClientException();
+        }
+
+        collectStats();
+        return Response.ok().entity(Metrics.scrape()).build();
+    }
+
+    /**
+     * Collects the statistics of the caches and services.
+     */
+    private void collectStats() {
+        BookCache bookCache = BookCache.getInstance();
+        setCacheStats("book", bookCache.getBookStats());
+        setCacheStats("book_isbn", bookCache.getIsbnStats());
+        Metrics.setValue("books_cache_size", "gauge", Metrics.labels("cache", "book"), bookCache.size());
+        Metrics.setValue("books_event_subscriptions", "gauge", "", LibraryEventBroker.getInstance().getSubscriptionCount());
+        Metrics.setValue("books_import_pending_chunks", "gauge", "", ImportQueue.getInstance().getPendingCount());
+        IsbnFilter isbnFilter = IsbnFilter.getInstance();
+        if (isbnFilter != null) {
+            Metrics.setValue("books_isbn_filter_expected_fpp", "gauge", "", isbnFilter.getExpectedFpp());
+            Metrics.setValue("books_isbn_filter_checks_total", "counter", "", isbnFilter.getCheckCount());
+            Metrics.setValue("books_isbn_filter_misses_total", "counter", "", isbnFilter.getMissCount());
+            Metrics.setValue("books_isbn_filter_false_positives_total", "counter", "", isbnFilter.getFalsePositiveCount());
+        }
+    }
+
+    /**
+     * Sets the statistics of a cache.
+     *
+     * @param cache Cache name
+     * @param cacheStats Cache statistics
+     */
+    private void setCacheStats(String cache, CacheStats cacheStats) {
+        String labels = Metrics.labels("cache", cache);
+        Metrics.setValue("books_cache_hits_total", "counter", labels, cacheStats.hitCount());
+        Metrics.setValue("books_cache_misses_total", "counter", labels, cacheStats.missCount());
+        Metrics.setValue("books_cache_evictions_total", "counter", labels, cacheStats.evictionCount());
+    }
+}
@@ -0,0 +1,151 @@
+package com.sismics.books.core.service;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.util.IsbnUtil;
+
+/**
+ * Book lookup provider backed by the Open Library books API.
+ * Books without title, author or publish date are reported as not found.
+ *
+ * @author agent
+ */
+public class OpenLibraryBookLookupProvider implements BookLookupProvider {
+    /**
+     * Accepted publish date formats.
+     */
+    private static final String[] PUBLISH_DATE_FORMATS = { "MMMM d, yyyy", "MMM d, yyyy", "MMMM yyyy", "yyyy" };
+
+    /**
+     * API base URL.
+     */
+    private final String baseUrl;
+
+    /**
+     * Connect and read timeout, in milliseconds.
+     */
+    private final int timeout;
+
+    /**
+     * Constructor of OpenLibraryBookLookupProvider.
+     *
+     * @param baseUrl API base URL, e.g. https://openlibrary.org
+     * @param timeout Connect and read timeout, in milliseconds
+     */
+    public OpenLibraryBookLookupProvider(String baseUrl, int timeout) {
+        this.baseUrl = baseUrl;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String getName() {
+        return "openLibrary";
+    }
+
+    @Override
+    public Book searchBook(String isbn) throws Exception {
+        String key = "ISBN:" + isbn.replaceAll("[^0-9X]", "");
+        URL url = new URL(baseUrl + "/api/books?format=json&jscmd=data&bibkeys=" + URLEncoder.encode(key, "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        String body;
+        try (InputStream inputStream = connection.getInputStream()) {
+            body = new String(IOUtils.toByteArray(inputStream), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+
+        JSONObject data = new JSONObject(body).optJSONObject(key);
+        if (data == null) {
+            return null;
+        }
+
+        // A book without title, author or publish date cannot be saved
+        String title = data.optString("title", null);
+        List<String> authorList = new ArrayList<>();
+        JSONArray authors = data.optJSONArray("authors");
+        for (int i = 0; authors != null && i < authors.length(); i++) {
+            JSONObject author = authors.optJSONObject(i);
+            if (author != null && !Strings.isNullOrEmpty(author.optString("name", null))) {
+                authorList.add(author.optString("name", null));
+            }
+        }
+        Date publishDate = parsePublishDate(data.optString("publish_date", null));
+        if (Strings.isNullOrEmpty(title) || authorList.isEmpty() || publishDate == null) {
+            return null;
+        }
+
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setTitle(title);
+        book.setSubtitle(data.optString("subtitle", null));
+        book.setAuthor(Joiner.on(", ").join(authorList));
+        if (data.optInt("number_of_pages") > 0) {
+            book.setPageCount((long) data.optInt("number_of_pages"));
+        }
+        book.setPublishDate(publishDate);
+
+        // Identify the book by the queried ISBN, if the identifiers do not
+        JSONObject identifiers = data.optJSONObject("identifiers");
+        if (identifiers != null) {
+            book.setIsbn10(firstString(identifiers.optJSONArray("isbn_10")));
+            book.setIsbn13(firstString(identifiers.optJSONArray("isbn_13")));
+        }
+        if (Strings.isNullOrEmpty(book.getIsbn10())) {
+            book.setIsbn10(IsbnUtil.toIsbn10(isbn));
+        }
+        if (Strings.isNullOrEmpty(book.getIsbn13())) {
+            book.setIsbn13(IsbnUtil.toIsbn13(isbn));
+        }
+        return book;
+    }
+
+    /**
+     * Returns the first string of an array.
+     *
+     * @param array JSON array
+     * @return First string, or null
+     */
+    private static String firstString(JSONArray array) {
+        return array == null || array.length() == 0 ? null : array.optString(0);
+    }
+
+    /**
+     * Parses a free-form publish date.
+     *
+     * @param publishDate Publish date
+     * @return Date, or null if it cannot be parsed
+     */
+    private static Date parsePublishDate(String publishDate) {
+        if (Strings.isNullOrEmpty(publishDate)) {
+            return null;
+        }
+        for (String format : PUBLISH_DATE_FORMATS) {
+            try {
+                return new SimpleDateFormat(format, Locale.ENGLISH).parse(publishDate);
+            } catch (ParseException e) {
+                // Try the next format
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,535 @@
+package com.sismics.books.core.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cover storage packing covers into append-only segment files.
+ *
+ * Each segment is memory-mapped once, and a cover is read straight from the
+ * mapping without opening a file. A record is laid out as:
+ * magic (int), book ID length (short), book ID (UTF-8), cover length (int), cover.
+ * The magic is written last, so a record interrupted by a crash is ignored.
+ *
+ * The index of covers (book ID to segment, offset and length) is kept in memory
+ * and rebuilt by scanning the record headers on startup, up to the first invalid
+ * record of each segment, where new records are written. Replaced covers leave
+ * dead records behind, and segments with too few live bytes are compacted in
+ * the background. Covers not in the store are read from the fallback store,
+ * and the existing covers are packed by a background migration.
+ *
+ * @author agent
+ */
+public class PackedCoverStore implements CoverStore {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(PackedCoverStore.class);
+
+    /**
+     * Record marker.
+     */
+    private static final int MAGIC = 0x43565231;
+
+    /**
+     * Live bytes ratio under which a segment is compacted.
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * Segment directory.
+     */
+    private final File directory;
+
+    /**
+     * Directory of covers written in the legacy flat layout.
+     */
+    private final File legacyDirectory;
+
+    /**
+     * Store read when a cover is not packed.
+     */
+    private final CoverStore fallbackStore;
+
+    /**
+     * Maximum size of a segment, in bytes.
+     */
+    private final int segmentSize;
+
+    /**
+     * Segments, by number.
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segmentMap = new ConcurrentSkipListMap<>();
+
+    /**
+     * Cover locations, by book ID.
+     */
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * Segment receiving new covers, guarded by this.
+     */
+    private Segment activeSegment;
+
+    /**
+     * Opens a packed cover store, and starts the background compaction.
+     *
+     * @param directory Segment directory
+     * @param legacyDirectory Directory of covers written in the legacy flat layout
+     * @param fallbackStore Store read when a cover is not packed
+     * @param segmentSize Maximum size of a segment, in bytes
+     * @throws IOException
+     */
+    public PackedCoverStore(File directory, File legacyDirectory, CoverStore fallbackStore, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.legacyDirectory = legacyDirectory;
+        this.fallbackStore = fallbackStore;
+        this.segmentSize = (int) Math.min(segmentSize, Integer.MAX_VALUE);
+        Files.createDirectories(directory.toPath());
+
+        // Rebuild the index, later records replace earlier ones
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().matches("segment-[0-9]+\\.pak")) {
+                    int number = Integer.parseInt(file.getName().replaceAll("[^0-9]", ""));
+                    segmentMap.put(number, new Segment(number, file, this.segmentSize));
+                }
+            }
+        }
+        for (Segment segment : segmentMap.values()) {
+            scan(segment);
+        }
+        activeSegment = segmentMap.isEmpty() ? newSegment() : segmentMap.lastEntry().getValue();
+
+        ScheduledExecutorService compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cover-compaction").setDaemon(true).build());
+        long interval = Long.getLong("books.cover.compactionInterval", 600000L);
+        compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Error compacting the cover segments", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public InputStream open(String bookId) throws IOException {
+        Location location = index.get(bookId);
+        if (location == null) {
+            return fallbackStore.open(bookId);
+        }
+        return new ByteBufferInputStream(location.segment.slice(location.offset, location.length));
+    }
+
+    @Override
+    public void store(String bookId, File file) throws IOException {
+        byte[] cover = Files.readAllBytes(file.toPath());
+        Location location = append(bookId, cover, null);
+
+        // The source is the only other copy, write the record to disk before deleting it
+        location.segment.buffer.force();
+        Files.delete(file.toPath());
+    }
+
+    @Override
+    public void storeLegacy(String bookId) throws IOException {
+        try {
+            store(bookId, new File(legacyDirectory, bookId));
+        } catch (NoSuchFileException e) {
+            // Already moved
+        }
+    }
+
+    /**
+     * Packs all the covers of the legacy flat layout and of the fallback store, if it is a file store.
+     * Covers already packed are left in the fallback store, which is no longer read for them.
+     *
+     * @return Number of covers packed
+     * @throws IOException
+     */
+    public int migrate() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(legacyDirectory.toPath())) {
+            for (Path path : directoryStream) {
+                if (Files.isRegularFile(path) && pack(path.getFileName().toString(), path.toFile())) {
+                    count++;
+                }
+            }
+        }
+        if (fallbackStore instanceof FileCoverStore) {
+            FileCoverStore fileCoverStore = (FileCoverStore) fallbackStore;
+            for (String bookId : fileCoverStore.getBookIdList()) {
+                if (!index.containsKey(bookId) && pack(bookId, fileCoverStore.getFile(bookId))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts the migration of the existing covers in a background thread.
+     */
+    public void startMigration() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = migrate();
+                    if (count > 0) {
+                        log.info(count + " covers packed");
+                    }
+                } catch (IOException e) {
+                    log.error("Error packing the existing covers", e);
+                }
+            }
+        }, "cover-pack-migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Packs a cover file, skipping the covers that cannot be packed.
+     *
+     * @param bookId Book ID
+     * @param file Cover file, deleted once packed
+     * @return True if packed
+     */
+    private boolean pack(String bookId, File file) {
+        try {
+            store(bookId, file);
+            return true;
+        } catch (NoSuchFileException e) {
+            // Moved in the meantime
+        } catch (IOException e) {
+            log.warn("Error packing the cover of book " + bookId, e);
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the live covers of sparse segments into the active segment, then deletes them.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        List<Segment> segmentList;
+        synchronized (this) {
+            segmentList = new ArrayList<>(segmentMap.headMap(activeSegment.number).values());
+        }
+        for (Segment segment : segmentList) {
+            if (segment.liveBytes.get() >= segment.usedBytes * COMPACTION_THRESHOLD) {
+                continue;
+            }
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            Set<Segment> targetSet = new HashSet<>();
+            int position = 0;
+            Record record;
+            while ((record = readRecord(buffer, position, segment.usedBytes)) != null) {
+                Location location = index.get(record.bookId);
+                if (location != null && location.segment == segment && location.offset == record.coverOffset) {
+                    byte[] cover = new byte[record.coverLength];
+                    ByteBuffer coverBuffer = segment.slice(record.coverOffset, record.coverLength);
+                    coverBuffer.get(cover);
+                    targetSet.add(append(record.bookId, cover, location).segment);
+                }
+                position = record.end;
+            }
+
+            // Write the copies to disk before deleting the originals
+            for (Segment target : targetSet) {
+                target.buffer.force();
+            }
+
+            synchronized (this) {
+                segmentMap.remove(segment.number);
+                segment.close();
+                Files.delete(segment.file.toPath());
+            }
+            log.info("Cover segment " + segment.file.getName() + " compacted");
+        }
+    }
+
+    /**
+     * Appends a cover to the active segment and indexes it.
+     *
+     * @param bookId Book ID
+     * @param cover Cover content
+     * @param expected Location this cover is moved from, or null to replace any cover
+     * @return Location of the new record
+     * @throws IOException
+     */
+    private synchronized Location append(String bookId, byte[] cover, Location expected) throws IOException {
+        byte[] id = bookId.getBytes(StandardCharsets.UTF_8);
+        int recordLength = 4 + 2 + id.length + 4 + cover.length;
+        if (recordLength > segmentSize) {
+            throw new IOException("Cover too large for a segment: " + cover.length + " bytes");
+        }
+        if (activeSegment.usedBytes + recordLength > segmentSize) {
+            activeSegment = newSegment();
+        }
+
+        // Write the record, then its magic
+        Segment segment = activeSegment;
+        int position = segment.usedBytes;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position + 4);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.putInt(cover.length);
+        int coverOffset = buffer.position();
+        buffer.put(cover);
+        buffer.putInt(position, MAGIC);
+        segment.usedBytes += recordLength;
+        segment.liveBytes.addAndGet(cover.length);
+
+        // Index the record
+        Location location = new Location(segment, coverOffset, cover.length);
+        Location previous;
+        if (expected == null) {
+            previous = index.put(bookId, location);
+        } else if (index.replace(bookId, expected, location)) {
+            previous = expected;
+        } else {
+            // Replaced in the meantime, the copy is already dead
+            previous = location;
+        }
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.length);
+        }
+        return location;
+    }
+
+    /**
+     * Creates a new segment.
+     *
+     * @return Segment
+     * @throws IOException
+     */
+    private Segment newSegment() throws IOException {
+        int number = segmentMap.isEmpty() ? 1 : segmentMap.lastKey() + 1;
+        Segment segment = new Segment(number, new File(directory, String.format("segment-%08d.pak", number)), segmentSize);
+        segmentMap.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Indexes the records of a segment, up to the first invalid record.
+     * A corrupt tail is dropped: its first magic is cleared and new records overwrite it.
+     *
+     * @param segment Segment
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        Record record;
+        while ((record = readRecord(buffer, position, segmentSize)) != null) {
+            Location previous = index.put(record.bookId, new Location(segment, record.coverOffset, record.coverLength));
+            if (previous != null) {
+                previous.segment.liveBytes.addAndGet(-previous.length);
+            }
+            segment.liveBytes.addAndGet(record.coverLength);
+            position = record.end;
+        }
+        if (position + 4 <= segmentSize && buffer.getInt(position) == MAGIC) {
+            log.warn("Corrupt cover record in " + segment.file.getName() + " at offset " + position + ", dropping the rest of the segment");
+            buffer.putInt(position, 0);
+            segment.buffer.force();
+        }
+        segment.usedBytes = position;
+    }
+
+    /**
+     * Reads a record header.
+     *
+     * @param buffer Segment buffer
+     * @param position Record position
+     * @param limit End of the written bytes
+     * @return Record, or null if there is no valid record at this position
+     */
+    private static Record readRecord(ByteBuffer buffer, int position, int limit) {
+        if (position + 10 > limit || buffer.getInt(position) != MAGIC) {
+            return null;
+        }
+        int idLength = buffer.getShort(position + 4);
+        if (idLength <= 0 || position + 10 + idLength > limit) {
+            return null;
+        }
+        byte[] id = new byte[idLength];
+        ByteBuffer idBuffer = buffer.duplicate();
+        idBuffer.position(position + 6);
+        idBuffer.get(id);
+        int coverLength = buffer.getInt(position + 6 + idLength);
+        int coverOffset = position + 6 + idLength + 4;
+        if (coverLength < 0 || coverLength > limit - coverOffset) {
+            return null;
+        }
+        return new Record(new String(id, StandardCharsets.UTF_8), coverOffset, coverLength, coverOffset + coverLength);
+    }
+
+    /**
+     * Returns the number of covers in the store.
+     *
+     * @return Number of covers
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the live bytes ratio of each segment.
+     *
+     * @return Live bytes ratio, by segment number
+     */
+    public Map<Integer, Double> getLiveRatios() {
+        Map<Integer, Double> ratioMap = new ConcurrentSkipListMap<>();
+        for (Segment segment : segmentMap.values()) {
+            ratioMap.put(segment.number, segment.usedBytes == 0 ? 1 : (double) segment.liveBytes.get() / segment.usedBytes);
+        }
+        return ratioMap;
+    }
+
+    /**
+     * Segment file, mapped in full.
+     */
+    private static class Segment {
+        private final int number;
+
+        private final File file;
+
+        private final RandomAccessFile randomAccessFile;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Bytes written, guarded by the store.
+         */
+        private volatile int usedBytes;
+
+        /**
+         * Bytes of covers still indexed.
+         */
+        private final AtomicLong liveBytes = new AtomicLong();
+
+        private Segment(int number, File file, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset);
+            slice.limit(offset + length);
+            return slice.slice();
+        }
+
+        private void close() throws IOException {
+            // The mapping stays valid for the streams still reading it
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Location of a cover.
+     */
+    private static class Location {
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Record header.
+     */
+    private static class Record {
+        private final String bookId;
+
+        private final int coverOffset;
+
+        private final int coverLength;
+
+        private final int end;
+
+        private Record(String bookId, int coverOffset, int coverLength, int end) {
+            this.bookId = bookId;
+            this.coverOffset = coverOffset;
+            this.coverLength = coverLength;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Input stream over a byte buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sismics.books.core.util.TransactionHooks;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * Write-behind buffer of the user book read dates.
+ *
+ * Read state changes are kept in memory, the last one winning for each user book,
+ * and written in batched statements every flush interval, when the buffer is full,
+ * and when the application stops. A read state leaves the buffer only once its write
+ * is committed, and is written again by the next flush if rolled back.
+ *
+ * Enabled by the system property books.read.writeBehind=true.
+ *
+ * @author agent
+ */
+public class ReadStateBuffer {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ReadStateBuffer.class);
+
+    /**
+     * Number of user books by statement.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Singleton, null if disabled.
+     */
+    private static ReadStateBuffer instance;
+
+    /**
+     * Pending read states by user book ID.
+     */
+    private final ConcurrentMap<String, ReadState> pendingMap = new ConcurrentHashMap<>();
+
+    /**
+     * Number of pending read states triggering a flush.
+     */
+    private final int flushSize;
+
+    /**
+     * True while a flush triggered by the size is scheduled.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Flush executor.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor of ReadStateBuffer.
+     *
+     * @param flushInterval Interval between two flushes, in milliseconds
+     * @param flushSize Number of pending read states triggering a flush
+     */
+    public ReadStateBuffer(long flushInterval, int flushSize) {
+        this.flushSize = flushSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("read-state-flush").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the buffer.
+     *
+     * @return Buffer, or null if write-behind is disabled
+     */
+    public static synchronized ReadStateBuffer getInstance() {
+        if (instance == null && Boolean.getBoolean("books.read.writeBehind")) {
+            instance = new ReadStateBuffer(Long.getLong("books.read.flushInterval", 1000L),
+                    Integer.getInteger("books.read.flushSize", 500));
+        }
+        return instance;
+    }
+
+    /**
+     * Buffers a read state change.
+     *
+     * @param userId User ID
+     * @param userBookId User book ID
+     * @param readDate Read date, null if unread
+     */
+    public void put(String userId, String userBookId, Date readDate) {
+        pendingMap.put(userBookId, new ReadState(userId, readDate));
+        if (pendingMap.size() >= flushSize && flushScheduled.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the pending read state of a user book.
+     *
+     * @param userBookId User book ID
+     * @return Pending read state, or null if none
+     */
+    public ReadState get(String userBookId) {
+        return pendingMap.get(userBookId);
+    }
+
+    /**
+     * Writes all the pending read states, in a new transaction.
+     */
+    public synchronized void flush() {
+        final Map<String, ReadState> snapshot = snapshot(null);
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        boolean committed = TransactionHooks.handle(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot);
+            }
+        });
+        if (committed) {
+            remove(snapshot);
+        } else {
+            log.error("Error writing " + snapshot.size() + " read states, kept for the next flush");
+        }
+    }
+
+    /**
+     * Writes the pending read states of a user, in the current transaction.
+     * They leave the buffer once the transaction is committed.
+     *
+     * @param userId User ID
+     */
+    public synchronized void flushUser(String userId) {
+        final Map<String, ReadState> snapshot = snapshot(userId);
+        if (!snapshot.isEmpty()) {
+            write(snapshot);
+            TransactionHooks.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    remove(snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the periodic flushes and writes the pending read states.
+     * Called when the application stops.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Returns a copy of the pending read states.
+     *
+     * @param userId User ID, null for all users
+     * @return Pending read states by user book ID
+     */
+    private Map<String, ReadState> snapshot(String userId) {
+        Map<String, ReadState> snapshot = new ConcurrentHashMap<>();
+        for (Map.Entry<String, ReadState> entry : pendingMap.entrySet()) {
+            if (userId == null || userId.equals(entry.getValue().userId)) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Removes written read states, unless they changed since.
+     *
+     * @param snapshot Written read states
+     */
+    private void remove(Map<String, ReadState> snapshot) {
+        for (Map.Entry<String, ReadState> entry : snapshot.entrySet()) {
+            pendingMap.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes read states in batched statements.
+     *
+     * @param snapshot Read states by user book ID
+     */
+    private static void write(Map<String, ReadState> snapshot) {
+        List<String> unreadIdList = new ArrayList<>();
+        List<String> readIdList = new ArrayList<>();
+        for (Map.Entry<String, ReadState> entry : snapshot.entrySet()) {
+            (entry.getValue().readDate == null ? unreadIdList : readIdList).add(entry.getKey());
+        }
+
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        for (List<String> idList : Lists.partition(unreadIdList, BATCH_SIZE)) {
+            Query q = em.createNativeQuery("update T_USER_BOOK set UBK_READDATE_D = null where UBK_ID_C in (:idList)");
+            q.setParameter("idList", idList);
+            q.executeUpdate();
+        }
+        for (List<String> idList : Lists.partition(readIdList, BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder("update T_USER_BOOK set UBK_READDATE_D = case UBK_ID_C ");
+            for (int i = 0; i < idList.size(); i++) {
+                sb.append(" when :id").append(i).append(" then :readDate").append(i);
+            }
+            sb.append(" end where UBK_ID_C in (:idList)");
+            Query q = em.createNativeQuery(sb.toString());
+            for (int i = 0; i < idList.size(); i++) {
+                q.setParameter("id" + i, idList.get(i));
+                q.setParameter("readDate" + i, snapshot.get(idList.get(i)).readDate);
+            }
+            q.setParameter("idList", idList);
+            q.executeUpdate();
+        }
+    }
+
+    /**
+     * Pending read state of a user book.
+     */
+    public static class ReadState {
+        /**
+         * Owner ID.
+         */
+        private final String userId;
+
+        /**
+         * Read date, null if unread.
+         */
+        private final Date readDate;
+
+        private ReadState(String userId, Date readDate) {
+            this.userId = userId;
+            this.readDate = readDate;
+        }
+
+        public Date getReadDate() {
+            return readDate;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.sismics.books.rest.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+/**
+ * Encodes the responses according to the Accept and Accept-Encoding headers.
+ *
+ * The data model is sent in CBOR if the client prefers it to JSON, and compressed
+ * with gzip or deflate above a size threshold. The encoding time and size are
+ * recorded by format, to compare the formats on real responses.
+ *
+ * @author agent
+ */
+public class ResponseEncoder {
+    /**
+     * CBOR media type.
+     */
+    public static final String APPLICATION_CBOR = "application/cbor";
+
+    /**
+     * Minimum size of a compressed response, in bytes, negative to never compress.
+     */
+    private static final int COMPRESS_THRESHOLD = Integer.getInteger("books.response.compressThreshold", 1024);
+
+    /**
+     * Returns an OK response, encoded for the client.
+     *
+     * @param request Request
+     * @param response Response data
+     * @return Response builder
+     */
+    public static Response.ResponseBuilder ok(HttpServletRequest request, JSONObject response) {
+        long startTime = System.nanoTime();
+        boolean cbor = acceptsCbor(request.getHeader(HttpHeaders.ACCEPT));
+        String format = cbor ? "cbor" : "json";
+        byte[] body = cbor ? CborWriter.toBytes(response) : response.toString().getBytes(Charsets.UTF_8);
+        Response.ResponseBuilder builder = Response.ok()
+                .type(cbor ? APPLICATION_CBOR : MediaType.APPLICATION_JSON)
+                .header("Vary", HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+
+        // Compress large responses
+        if (COMPRESS_THRESHOLD >= 0 && body.length >= COMPRESS_THRESHOLD) {
+            String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+            String contentEncoding = accepts(acceptEncoding, "gzip") ? "gzip" : accepts(acceptEncoding, "deflate") ? "deflate" : null;
+            if (contentEncoding != null) {
+                body = compress(body, contentEncoding);
+                builder.header("Content-Encoding", contentEncoding);
+                format += "_" + contentEncoding;
+            }
+        }
+
+        String labels = Metrics.labels("format", format);
+        Metrics.observeLatency("books_response_encode_seconds", labels, startTime);
+        Metrics.add("books_response_bytes_total", labels, body.length);
+        return builder.entity(body);
+    }
+
+    /**
+     * Returns true if an Accept header prefers CBOR to JSON.
+     *
+     * @param accept Accept header, may be null
+     * @return True to send CBOR
+     */
+    private static boolean acceptsCbor(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        double cborQuality = 0;
+        double jsonQuality = 0;
+        for (String mediaRange : Splitter.on(',').trimResults().omitEmptyStrings().split(accept)) {
+            String type = mediaRange;
+            double quality = 1;
+            int parameterIndex = mediaRange.indexOf(';');
+            if (parameterIndex >= 0) {
+                type = mediaRange.substring(0, parameterIndex).trim();
+                quality = parseQuality(mediaRange.substring(parameterIndex + 1));
+            }
+            if (type.equalsIgnoreCase(APPLICATION_CBOR)) {
+                cborQuality = Math.max(cborQuality, quality);
+            } else if (type.equalsIgnoreCase(MediaType.APPLICATION_JSON) || type.equals("application/*") || type.equals("*/*")) {
+                jsonQuality = Math.max(jsonQuality, quality);
+            }
+        }
+        return cborQuality > 0 && cborQuality >= jsonQuality;
+    }
+
+    /**
+     * Returns true if an Accept-Encoding header accepts a content coding.
+     *
+     * @param acceptEncoding Accept-Encoding header, may be null
+     * @param coding Content coding
+     * @return True if accepted
+     */
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String value : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding)) {
+            int parameterIndex = value.indexOf(';');
+            String name = parameterIndex >= 0 ? value.substring(0, parameterIndex).trim() : value;
+            if (name.equalsIgnoreCase(coding)) {
+                return parameterIndex < 0 || parseQuality(value.substring(parameterIndex + 1)) > 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the quality of a header value.
+     *
+     * @param parameters Parameters of the value, after the first semicolon
+     * @return Quality, 1 if absent or malformed
+     */
+    private static double parseQuality(String parameters) {
+        for (String parameter : Splitter.on(';').trimResults().split(parameters)) {
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Compresses a body.
+     *
+     * @param body Body
+     * @param contentEncoding gzip or deflate
+     * @return Compressed body
+     */
+    private static byte[] compress(byte[] body, String contentEncoding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+        try (OutputStream out = contentEncoding.equals("gzip") ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            out.write(body);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,21 @@
+package com.sismics.books.rest.util;
+
+import org.hibernate.EmptyInterceptor;
+
+/**
+ * Hibernate interceptor counting the SQL statements prepared by each request,
+ * including the native queries of the DAOs.
+ *
+ * Registered by MetricsListener with the hibernate.ejb.interceptor property.
+ *
+ * @author agent
+ */
+public class StatementMetricsInterceptor extends EmptyInterceptor {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        Metrics.statement(sql);
+        return sql;
+    }
+}
@@ -0,0 +1,366 @@
+package com.sismics.books.rest;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.sismics.books.core.dao.jpa.BookDao;
+import com.sismics.books.core.dao.jpa.UserBookDao;
+import com.sismics.books.core.dao.jpa.UserDao;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.model.jpa.UserBook;
+import com.sismics.books.core.service.BookLookupProvider;
+import com.sismics.books.core.service.BookLookupService;
+import com.sismics.books.core.util.TransactionUtil;
+import com.sismics.books.rest.filter.CookieAuthenticationFilter;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import com.sun.jersey.multipart.FormDataBodyPart;
+import com.sun.jersey.multipart.FormDataMultiPart;
+
+/**
+ * Load test of the book resource, in the embedded container on H2.
+ *
+ * Generates a library, then drives a mix of list, get, cover, update, add and import
+ * requests from several threads and logs the throughput and the p50/p99/p999 latencies
+ * of each endpoint. Book lookups are answered by a stub provider with a fixed latency.
+ *
+ * Skipped unless run with -Dbooks.loadtest=true, configured by:
+ * books.loadtest.librarySize (1000), books.loadtest.threads (16),
+ * books.loadtest.duration in milliseconds (60000), books.loadtest.lookupLatency in milliseconds (200),
+ * books.loadtest.mix (list:40,get:25,cover:15,update:10,add:7,import:3).
+ *
+ * @author agent
+ */
+public class TestBookLoad extends BaseJerseyTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestBookLoad.class);
+
+    /**
+     * Number of books inserted by transaction when generating the library.
+     */
+    private static final int GENERATE_BATCH_SIZE = 1000;
+
+    /**
+     * Number of rows of an imported file.
+     */
+    private static final int IMPORT_SIZE = 20;
+
+    static {
+        // The whole load comes from a single user, do not throttle its lookups
+        if (System.getProperty("books.admission.rate") == null) {
+            System.setProperty("books.admission.rate", "100000");
+            System.setProperty("books.admission.burst", "100000");
+            System.setProperty("books.admission.maxInFlight", "100000");
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("books.loadtest"));
+        int librarySize = Integer.getInteger("books.loadtest.librarySize", 1000);
+        int threads = Integer.getInteger("books.loadtest.threads", 16);
+        long duration = Long.getLong("books.loadtest.duration", 60000L);
+        final long lookupLatency = Long.getLong("books.loadtest.lookupLatency", 200L);
+        final Map<String, Integer> mixMap = parseMix(System.getProperty("books.loadtest.mix",
+                "list:40,get:25,cover:15,update:10,add:7,import:3"));
+
+        // Answer the book lookups from a stub, after a fixed latency
+        BookLookupProvider stubProvider = new BookLookupProvider() {
+            @Override
+            public String getName() {
+                return "stub";
+            }
+
+            @Override
+            public Book searchBook(String isbn) throws Exception {
+                Thread.sleep(lookupLatency);
+                return newBook(isbn);
+            }
+        };
+        BookLookupService.setInstance(new BookLookupService(null, Collections.singletonList(stubProvider),
+                0.95, lookupLatency * 10 + 1000, 5, 30000, 8, 3600000));
+
+        // Generate the library
+        clientUtil.createUser("loadtest");
+        String token = clientUtil.login("loadtest");
+        final String userId = new UserDao().getActiveByUsername("loadtest").getId();
+        final List<String> userBookIdList = Collections.synchronizedList(new ArrayList<String>());
+        long startTime = System.currentTimeMillis();
+        while (userBookIdList.size() < librarySize) {
+            final int batchSize = Math.min(GENERATE_BATCH_SIZE, librarySize - userBookIdList.size());
+            TransactionUtil.handle(new Runnable() {
+                @Override
+                public void run() {
+                    generateBooks(userId, batchSize, userBookIdList);
+                }
+            });
+        }
+        log.info("Library of " + librarySize + " books generated in " + (System.currentTimeMillis() - startTime) + "ms");
+
+        // Drive the workload
+        final WebResource bookResource = resource().path("/book");
+        bookResource.addFilter(new CookieAuthenticationFilter(token));
+        final Map<String, EndpointStats> statsMap = new LinkedHashMap<>();
+        for (String operation : mixMap.keySet()) {
+            statsMap.put(operation, new EndpointStats());
+        }
+        final long endTime = System.currentTimeMillis() + duration;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (System.currentTimeMillis() < endTime) {
+                        String operation = pickOperation(mixMap, random);
+                        long operationStart = System.nanoTime();
+                        int status;
+                        try {
+                            status = call(bookResource, operation, userBookIdList, random);
+                        } catch (Exception e) {
+                            log.error("Error calling " + operation, e);
+                            status = 0;
+                        }
+                        statsMap.get(operation).record(System.nanoTime() - operationStart, status);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(duration + 60000, TimeUnit.MILLISECONDS);
+
+        // Report the throughput and latencies of each endpoint
+        StringBuilder report = new StringBuilder("Load test of " + threads + " threads during " + duration
+                + "ms on a library of " + librarySize + " books, lookup latency " + lookupLatency + "ms\n");
+        report.append(String.format("%-8s %8s %8s %8s %10s %10s %10s%n", "endpoint", "count", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+        for (Map.Entry<String, EndpointStats> entry : statsMap.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            report.append(String.format("%-8s %8d %8d %8.1f %10.1f %10.1f %10.1f%n", entry.getKey(),
+                    stats.getCount(), stats.errorCount.get(), stats.getCount() * 1000.0 / duration,
+                    stats.getPercentile(0.5), stats.getPercentile(0.99), stats.getPercentile(0.999)));
+        }
+        log.info(report.toString());
+    }
+
+    /**
+     * Calls an endpoint of the book resource.
+     *
+     * @param bookResource Book resource, authenticated
+     * @param operation Operation
+     * @param userBookIdList User book IDs of the library
+     * @param random Random
+     * @return HTTP status
+     */
+    private static int call(WebResource bookResource, String operation, List<String> userBookIdList, Random random) {
+        String userBookId = userBookIdList.get(random.nextInt(userBookIdList.size()));
+        ClientResponse response;
+        switch (operation) {
+        case "list":
+            response = bookResource.path("list")
+                    .queryParam("limit", "20")
+                    .queryParam("offset", Integer.toString(20 * random.nextInt(Math.max(1, userBookIdList.size() / 20))))
+                    .get(ClientResponse.class);
+            break;
+        case "get":
+            response = bookResource.path(userBookId).get(ClientResponse.class);
+            break;
+        case "cover":
+            response = bookResource.path(userBookId).path("cover").get(ClientResponse.class);
+            break;
+        case "update":
+            MultivaluedMapImpl updateParams = new MultivaluedMapImpl();
+            updateParams.add("title", "Title " + random.nextInt());
+            response = bookResource.path(userBookId).post(ClientResponse.class, updateParams);
+            break;
+        case "add":
+            MultivaluedMapImpl addParams = new MultivaluedMapImpl();
+            addParams.add("isbn", randomIsbn13(random));
+            response = bookResource.put(ClientResponse.class, addParams);
+            break;
+        case "import":
+            FormDataMultiPart form = new FormDataMultiPart();
+            form.bodyPart(new FormDataBodyPart("file", new ByteArrayInputStream(randomImport(random)),
+                    MediaType.APPLICATION_OCTET_STREAM_TYPE));
+            response = bookResource.path("import").type(MediaType.MULTIPART_FORM_DATA).put(ClientResponse.class, form);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+
+        // Read the whole response, it is part of the latency
+        response.getEntity(byte[].class);
+        return response.getStatus();
+    }
+
+    /**
+     * Inserts books in the library of a user.
+     *
+     * @param userId User ID
+     * @param count Number of books
+     * @param userBookIdList User book IDs, filled with the new ones
+     */
+    private static void generateBooks(String userId, int count, List<String> userBookIdList) {
+        BookDao bookDao = new BookDao();
+        UserBookDao userBookDao = new UserBookDao();
+        Random random = new Random();
+        for (int i = 0; i < count; i++) {
+            Book book = newBook(randomIsbn13(random));
+            bookDao.create(book);
+            UserBook userBook = new UserBook();
+            userBook.setUserId(userId);
+            userBook.setBookId(book.getId());
+            userBook.setCreateDate(new Date());
+            if (random.nextBoolean()) {
+                userBook.setReadDate(new Date());
+            }
+            userBookIdList.add(userBookDao.create(userBook));
+        }
+    }
+
+    /**
+     * Returns a new book, not persisted.
+     *
+     * @param isbn13 ISBN-13
+     * @return Book
+     */
+    private static Book newBook(String isbn13) {
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setTitle("Book " + isbn13);
+        book.setAuthor("Author " + isbn13.substring(9));
+        book.setDescription("Description of the book " + isbn13);
+        book.setIsbn13(isbn13);
+        book.setPageCount(100L + Long.parseLong(isbn13.substring(10)));
+        book.setLanguage("en");
+        book.setPublishDate(new Date());
+        return book;
+    }
+
+    /**
+     * Returns a random valid ISBN-13.
+     *
+     * @param random Random
+     * @return ISBN-13
+     */
+    private static String randomIsbn13(Random random) {
+        StringBuilder isbn = new StringBuilder("979");
+        for (int i = 0; i < 9; i++) {
+            isbn.append(random.nextInt(10));
+        }
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (isbn.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return isbn.append((10 - sum % 10) % 10).toString();
+    }
+
+    /**
+     * Returns a random import file, in the Goodreads CSV format.
+     *
+     * @param random Random
+     * @return File content
+     */
+    private static byte[] randomImport(Random random) {
+        StringBuilder csv = new StringBuilder("Book Id,Title,Author,Author l-f,Additional Authors,ISBN,ISBN13\n");
+        for (int i = 0; i < IMPORT_SIZE; i++) {
+            String isbn13 = randomIsbn13(random);
+            csv.append(i).append(",Book ").append(isbn13).append(",Author,,,\"=\"\"\"\"\",\"=\"\"").append(isbn13).append("\"\"\"\n");
+        }
+        return csv.toString().getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Parses a workload mix, e.g. list:40,get:25.
+     *
+     * @param mix Workload mix
+     * @return Weights by operation
+     */
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> mixMap = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : Splitter.on(',').trimResults().withKeyValueSeparator(':').split(mix).entrySet()) {
+            mixMap.put(entry.getKey(), Integer.parseInt(entry.getValue()));
+        }
+        return mixMap;
+    }
+
+    /**
+     * Picks an operation at random, according to the workload mix.
+     *
+     * @param mixMap Weights by operation
+     * @param random Random
+     * @return Operation
+     */
+    private static String pickOperation(Map<String, Integer> mixMap, Random random) {
+        int total = 0;
+        for (int weight : mixMap.values()) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mixMap.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Latencies and errors of an endpoint.
+     */
+    private static class EndpointStats {
+        private final List<Long> latencyList = new ArrayList<>();
+
+        private final AtomicLong errorCount = new AtomicLong();
+
+        private synchronized void record(long latency, int status) {
+            latencyList.add(latency);
+            if (status < 200 || status >= 300) {
+                errorCount.incrementAndGet();
+            }
+        }
+
+        private synchronized int getCount() {
+            return latencyList.size();
+        }
+
+        /**
+         * Returns a latency percentile.
+         *
+         * @param percentile Percentile, between 0 and 1
+         * @return Latency, in milliseconds
+         */
+        private synchronized double getPercentile(double percentile) {
+            if (latencyList.isEmpty()) {
+                return 0;
+            }
+            List<Long> sortedList = new ArrayList<>(latencyList);
+            Collections.sort(sortedList);
+            int index = (int) Math.ceil(percentile * sortedList.size()) - 1;
+            return sortedList.get(Math.max(0, index)) / 1000000.0;
+        }
+    }
+}
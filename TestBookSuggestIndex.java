@@ -0,0 +1,140 @@
+package com.sismics.books.core.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.sismics.books.BaseTransactionalTest;
+import com.sismics.books.core.dao.jpa.BookDao;
+import com.sismics.books.core.dao.jpa.UserBookDao;
+import com.sismics.books.core.dao.jpa.UserDao;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.model.jpa.User;
+import com.sismics.books.core.model.jpa.UserBook;
+import com.sismics.books.core.service.BookSuggestIndex.Suggestion;
+
+/**
+ * Test of the book suggestion index.
+ *
+ * @author agent
+ */
+public class TestBookSuggestIndex extends BaseTransactionalTest {
+    @Test
+    public void testSuggest() throws Exception {
+        String userId = createUser();
+        String userBookId1 = createUserBook(userId, "The Lord of the Rings", "J. R. R. Tolkien");
+        String userBookId2 = createUserBook(userId, "Les Mis\u00e9rables", "Victor Hugo");
+        BookSuggestIndex bookSuggestIndex = new BookSuggestIndex(100, 60000, 60000);
+
+        // Any word of the title or author, without case nor accents
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "lord"));
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "tolk"));
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "LORD OF"));
+        Assert.assertEquals(Lists.newArrayList(userBookId2), suggest(bookSuggestIndex, userId, "miser"));
+        Assert.assertEquals(Lists.newArrayList(userBookId2), suggest(bookSuggestIndex, userId, "MIS\u00c9R"));
+        Assert.assertTrue(suggest(bookSuggestIndex, userId, "rings lord").isEmpty());
+        Assert.assertTrue(suggest(bookSuggestIndex, userId, " ").isEmpty());
+
+        // Each book once, up to the limit
+        Assert.assertEquals(2, suggest(bookSuggestIndex, userId, "l").size());
+        Assert.assertEquals(1, bookSuggestIndex.suggest(userId, "l", 1).size());
+
+        // The books of other users are not suggested
+        Assert.assertTrue(suggest(bookSuggestIndex, createUser(), "lord").isEmpty());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        String userId = createUser();
+        String userBookId1 = createUserBook(userId, "The Lord of the Rings", "J. R. R. Tolkien");
+        BookSuggestIndex bookSuggestIndex = new BookSuggestIndex(100, 60000, 60000);
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "lord"));
+
+        // A new book is merged in term order
+        Book book2 = new Book();
+        book2.setId(UUID.randomUUID().toString());
+        book2.setTitle("Lord Jim");
+        book2.setAuthor("Joseph Conrad");
+        bookSuggestIndex.put(userId, "userBook2", book2);
+        Assert.assertEquals(Lists.newArrayList("userBook2", userBookId1), suggest(bookSuggestIndex, userId, "lord"));
+        Assert.assertEquals(Lists.newArrayList("userBook2"), suggest(bookSuggestIndex, userId, "conrad"));
+
+        // An updated book loses its previous terms
+        Book book1 = new Book();
+        book1.setId(new UserBookDao().getUserBook(userBookId1).getBookId());
+        book1.setTitle("The Hobbit");
+        book1.setAuthor("J. R. R. Tolkien");
+        bookSuggestIndex.update(book1);
+        Assert.assertEquals(Lists.newArrayList("userBook2"), suggest(bookSuggestIndex, userId, "lord"));
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "hobbit"));
+
+        // A removed book loses all its terms
+        bookSuggestIndex.remove(userId, "userBook2");
+        Assert.assertTrue(suggest(bookSuggestIndex, userId, "lord").isEmpty());
+        Assert.assertTrue(suggest(bookSuggestIndex, userId, "conrad").isEmpty());
+
+        // Changes to an index not in memory are ignored, it is loaded from the database
+        bookSuggestIndex.invalidate(userId);
+        bookSuggestIndex.put(userId, "userBook2", book2);
+        Assert.assertEquals(Lists.newArrayList(userBookId1), suggest(bookSuggestIndex, userId, "lord"));
+    }
+
+    /**
+     * Returns the IDs of the user books suggested for a prefix.
+     *
+     * @param bookSuggestIndex Index
+     * @param userId User ID
+     * @param prefix Prefix
+     * @return User book IDs
+     */
+    private static List<String> suggest(BookSuggestIndex bookSuggestIndex, String userId, String prefix) {
+        List<String> userBookIdList = new ArrayList<>();
+        for (Suggestion suggestion : bookSuggestIndex.suggest(userId, prefix, 10)) {
+            userBookIdList.add(suggestion.getUserBookId());
+        }
+        return userBookIdList;
+    }
+
+    /**
+     * Creates a user.
+     *
+     * @return User ID
+     */
+    private static String createUser() throws Exception {
+        User user = new User();
+        user.setUsername("user" + UUID.randomUUID().toString().substring(0, 8));
+        user.setPassword("12345678");
+        user.setEmail("user@books.com");
+        user.setLocaleId("en");
+        user.setRoleId("user");
+        return new UserDao().create(user);
+    }
+
+    /**
+     * Creates a book and adds it to a user.
+     *
+     * @param userId User ID
+     * @param title Title
+     * @param author Author
+     * @return User book ID
+     */
+    private static String createUserBook(String userId, String title, String author) throws Exception {
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setTitle(title);
+        book.setAuthor(author);
+        book.setPublishDate(new Date());
+        new BookDao().create(book);
+
+        UserBook userBook = new UserBook();
+        userBook.setUserId(userId);
+        userBook.setBookId(book.getId());
+        userBook.setCreateDate(new Date());
+        return new UserBookDao().create(userBook);
+    }
+}
@@ -0,0 +1,75 @@
+package com.sismics.books.rest.util;
+
+import java.util.Arrays;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Test of the CBOR encoder, against the examples of RFC 7049.
+ *
+ * @author agent
+ */
+public class TestCborWriter {
+    @Test
+    public void testIntegers() throws Exception {
+        assertEncoded("a1616100", "a", 0);
+        assertEncoded("a1616117", "a", 23);
+        assertEncoded("a161611818", "a", 24);
+        assertEncoded("a1616118ff", "a", 255);
+        assertEncoded("a16161190100", "a", 256);
+        assertEncoded("a161611a000f4240", "a", 1000000);
+        assertEncoded("a161611b0000000100000000", "a", 4294967296L);
+        assertEncoded("a1616120", "a", -1);
+        assertEncoded("a161613863", "a", -100);
+    }
+
+    @Test
+    public void testSimpleValues() throws Exception {
+        assertEncoded("a16161f5", "a", true);
+        assertEncoded("a16161f4", "a", false);
+        assertEncoded("a16161f6", "a", JSONObject.NULL);
+        assertEncoded("a16161fb3ff8000000000000", "a", 1.5);
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        assertEncoded("a1616160", "a", "");
+        assertEncoded("a161616449455446", "a", "IETF");
+        assertEncoded("a1616162c3bc", "a", "\u00fc");
+    }
+
+    @Test
+    public void testContainers() throws Exception {
+        assertEncoded("a1616183010203", "a", new JSONArray(Arrays.asList(1, 2, 3)));
+        assertEncoded("a1616180", "a", new JSONArray());
+        assertEncoded("a16161a1616202", "a", new JSONObject().put("b", 2));
+        assertEncoded("a1616182016178", "a", Arrays.asList(1, "x"));
+
+        // Lengths of 24 items and more take an extra byte
+        JSONArray jsonArray = new JSONArray();
+        for (int i = 0; i < 25; i++) {
+            jsonArray.put(1);
+        }
+        byte[] bytes = CborWriter.toBytes(new JSONObject().put("a", jsonArray));
+        Assert.assertEquals("a161619819", BaseEncoding.base16().lowerCase().encode(bytes, 0, 5));
+        Assert.assertEquals(5 + 25, bytes.length);
+    }
+
+    /**
+     * Asserts the encoding of an object with a single key.
+     *
+     * @param expected Expected encoding, in hexadecimal
+     * @param key Key
+     * @param value Value
+     * @throws Exception
+     */
+    private static void assertEncoded(String expected, String key, Object value) throws Exception {
+        byte[] bytes = CborWriter.toBytes(new JSONObject().put(key, value));
+        Assert.assertEquals(expected, BaseEncoding.base16().lowerCase().encode(bytes));
+    }
+}
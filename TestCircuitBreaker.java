@@ -0,0 +1,78 @@
+package com.sismics.books.core.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test of the circuit breaker.
+ *
+ * @author agent
+ */
+public class TestCircuitBreaker {
+    @Test
+    public void testOpenAfterThreshold() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 60000);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        // Failures below the threshold keep the circuit closed
+        circuitBreaker.tryAcquire().recordFailure();
+        circuitBreaker.tryAcquire().recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        // A success resets the consecutive failures
+        circuitBreaker.tryAcquire().recordSuccess();
+        circuitBreaker.tryAcquire().recordFailure();
+        circuitBreaker.tryAcquire().recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        // The third consecutive failure opens the circuit, calls are rejected
+        circuitBreaker.tryAcquire().recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Assert.assertNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenTrial() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 50);
+        circuitBreaker.tryAcquire().recordFailure();
+        Assert.assertNull(circuitBreaker.tryAcquire());
+        Thread.sleep(100);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        // A single trial call at a time
+        CircuitBreaker.Permit trial = circuitBreaker.tryAcquire();
+        Assert.assertNotNull(trial);
+        Assert.assertNull(circuitBreaker.tryAcquire());
+
+        // A failed trial opens the circuit again
+        trial.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Thread.sleep(100);
+
+        // A successful trial closes the circuit
+        trial = circuitBreaker.tryAcquire();
+        Assert.assertNotNull(trial);
+        trial.recordSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        Assert.assertNotNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testReleasedTrial() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 50);
+        circuitBreaker.tryAcquire().recordFailure();
+        Thread.sleep(100);
+
+        // A cancelled trial lets the next call be a trial, without changing the state
+        CircuitBreaker.Permit trial = circuitBreaker.tryAcquire();
+        trial.release();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        CircuitBreaker.Permit nextTrial = circuitBreaker.tryAcquire();
+        Assert.assertNotNull(nextTrial);
+
+        // A permit is settled once, the first outcome wins
+        nextTrial.recordSuccess();
+        nextTrial.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,113 @@
+package com.sismics.books.rest.util;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.sismics.books.BaseTransactionalTest;
+import com.sismics.books.rest.util.IdempotencyStore.Ticket;
+import com.sismics.rest.exception.ClientException;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * Test of the idempotency store.
+ *
+ * @author agent
+ */
+public class TestIdempotencyStore extends BaseTransactionalTest {
+    @Test
+    public void testReplayAfterCommit() throws Exception {
+        IdempotencyStore idempotencyStore = new IdempotencyStore(100, 60000);
+        Assert.assertNull(idempotencyStore.begin("user1", "book_add", null, "isbn"));
+
+        // First request
+        Ticket ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+        Assert.assertFalse(ticket.isReplay());
+        idempotencyStore.complete(ticket, new JSONObject().put("id", "book1"));
+        restartTransaction(true);
+
+        // A retry replays the stored response
+        ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+        Assert.assertTrue(ticket.isReplay());
+        Response response = ticket.replay();
+        Assert.assertEquals("book1", ((JSONObject) response.getEntity()).getString("id"));
+
+        // Keys are by user and operation
+        Assert.assertFalse(idempotencyStore.begin("user2", "book_add", "key1", "isbn").isReplay());
+        Assert.assertFalse(idempotencyStore.begin("user1", "book_add_manual", "key1", "isbn").isReplay());
+    }
+
+    @Test
+    public void testForgetRollback() throws Exception {
+        IdempotencyStore idempotencyStore = new IdempotencyStore(100, 60000);
+
+        // A completed request rolled back is not stored
+        Ticket ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+        idempotencyStore.complete(ticket, new JSONObject().put("id", "book1"));
+        restartTransaction(false);
+        ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+        Assert.assertFalse(ticket.isReplay());
+
+        // A request committed without completing, such as a rejected one, is not stored either
+        restartTransaction(true);
+        Assert.assertFalse(idempotencyStore.begin("user1", "book_add", "key1", "isbn").isReplay());
+    }
+
+    @Test
+    public void testKeyReused() throws Exception {
+        IdempotencyStore idempotencyStore = new IdempotencyStore(100, 60000);
+        Ticket ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn1");
+        idempotencyStore.complete(ticket, new JSONObject().put("id", "book1"));
+        restartTransaction(true);
+        try {
+            idempotencyStore.begin("user1", "book_add", "key1", "isbn2");
+            Assert.fail();
+        } catch (ClientException e) {
+            // The same key with other parameters
+        }
+    }
+
+    @Test
+    public void testInProgress() throws Exception {
+        IdempotencyStore idempotencyStore = new IdempotencyStore(100, 60000);
+        Ticket ticket = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+
+        // A retry while the first request runs gets a conflict at once
+        Ticket retry = idempotencyStore.begin("user1", "book_add", "key1", "isbn");
+        Assert.assertTrue(retry.isReplay());
+        Response response = retry.replay();
+        Assert.assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        Assert.assertEquals("RequestInProgress", ((JSONObject) response.getEntity()).getString("type"));
+
+        // Then the stored response once committed
+        idempotencyStore.complete(ticket, new JSONObject().put("id", "book1"));
+        restartTransaction(true);
+        response = idempotencyStore.begin("user1", "book_add", "key1", "isbn").replay();
+        Assert.assertEquals("book1", ((JSONObject) response.getEntity()).getString("id"));
+    }
+
+    @Test(expected = ClientException.class)
+    public void testKeyTooLong() throws Exception {
+        IdempotencyStore idempotencyStore = new IdempotencyStore(100, 60000);
+        idempotencyStore.begin("user1", "book_add", Strings.repeat("k", 256), "isbn");
+    }
+
+    /**
+     * Ends the transaction of the test and starts a new one.
+     *
+     * @param commit True to commit, false to roll back
+     */
+    private static void restartTransaction(boolean commit) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        if (commit) {
+            em.getTransaction().commit();
+        } else {
+            em.getTransaction().rollback();
+        }
+        em.getTransaction().begin();
+    }
+}
@@ -0,0 +1,138 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.Date;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sismics.books.BaseTransactionalTest;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.model.jpa.User;
+import com.sismics.books.core.model.jpa.UserBook;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * Test of the write-behind buffer of the read dates.
+ *
+ * @author agent
+ */
+public class TestReadStateBuffer extends BaseTransactionalTest {
+    @Test
+    public void testFlushUser() throws Exception {
+        String userId = createUser();
+        String userBookId = createUserBook(userId);
+        restartTransaction(true);
+        ReadStateBuffer readStateBuffer = new ReadStateBuffer(3600000, 1000);
+
+        // The last read state wins
+        Date readDate = new Date();
+        readStateBuffer.put(userId, userBookId, null);
+        readStateBuffer.put(userId, userBookId, readDate);
+        Assert.assertEquals(readDate, readStateBuffer.get(userBookId).getReadDate());
+
+        // Written but rolled back, the read state stays pending
+        readStateBuffer.flushUser(userId);
+        Assert.assertNotNull(readStateBuffer.get(userBookId));
+        restartTransaction(false);
+        Assert.assertNotNull(readStateBuffer.get(userBookId));
+        Assert.assertNull(getReadDate(userBookId));
+
+        // Written and committed, the read state leaves the buffer
+        readStateBuffer.flushUser(userId);
+        restartTransaction(true);
+        Assert.assertNull(readStateBuffer.get(userBookId));
+        Assert.assertNotNull(getReadDate(userBookId));
+
+        // The read states of other users are not written
+        readStateBuffer.put("other", userBookId, null);
+        readStateBuffer.flushUser(userId);
+        restartTransaction(true);
+        Assert.assertNotNull(readStateBuffer.get(userBookId));
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        String userId = createUser();
+        String userBookId = createUserBook(userId);
+        restartTransaction(true);
+        final ReadStateBuffer readStateBuffer = new ReadStateBuffer(3600000, 1000);
+        readStateBuffer.put(userId, userBookId, new Date());
+
+        // Flush from a thread without transaction, as the flush executor
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readStateBuffer.flush();
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertNull(readStateBuffer.get(userBookId));
+        Assert.assertNotNull(getReadDate(userBookId));
+    }
+
+    /**
+     * Returns the read date of a user book in the database.
+     *
+     * @param userBookId User book ID
+     * @return Read date
+     */
+    private static Date getReadDate(String userBookId) {
+        ThreadLocalContext.get().getEntityManager().clear();
+        return new UserBookDao().getUserBook(userBookId).getReadDate();
+    }
+
+    /**
+     * Ends the transaction of the test and starts a new one.
+     *
+     * @param commit True to commit, false to roll back
+     */
+    private static void restartTransaction(boolean commit) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        if (commit) {
+            em.getTransaction().commit();
+        } else {
+            em.getTransaction().rollback();
+        }
+        em.getTransaction().begin();
+    }
+
+    /**
+     * Creates a user.
+     *
+     * @return User ID
+     */
+    private static String createUser() throws Exception {
+        User user = new User();
+        user.setUsername("user" + UUID.randomUUID().toString().substring(0, 8));
+        user.setPassword("12345678");
+        user.setEmail("user@books.com");
+        user.setLocaleId("en");
+        user.setRoleId("user");
+        return new UserDao().create(user);
+    }
+
+    /**
+     * Creates a book and adds it to a user.
+     *
+     * @param userId User ID
+     * @return User book ID
+     */
+    private static String createUserBook(String userId) throws Exception {
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setTitle("Title");
+        book.setAuthor("Author");
+        book.setPublishDate(new Date());
+        new BookDao().create(book);
+
+        UserBook userBook = new UserBook();
+        userBook.setUserId(userId);
+        userBook.setBookId(book.getId());
+        userBook.setCreateDate(new Date());
+        return new UserBookDao().create(userBook);
+    }
+}
@@ -0,0 +1,88 @@
+package com.sismics.books.core.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sismics.books.core.service.UserAdmissionControl.Admission;
+
+/**
+ * Test of the per-user admission control.
+ *
+ * @author agent
+ */
+public class TestUserAdmissionControl {
+    @Test
+    public void testBurst() throws Exception {
+        // One call every 100 seconds, in bursts of 3
+        UserAdmissionControl admissionControl = new UserAdmissionControl(0.01, 3, 10);
+        for (int i = 0; i < 3; i++) {
+            admissionControl.admit("user1").release();
+        }
+
+        // The bucket is empty, the next token comes in about 100 seconds
+        Admission admission = admissionControl.admit("user1");
+        Assert.assertFalse(admission.isAdmitted());
+        Assert.assertTrue(admission.getRetryAfter() > 90 && admission.getRetryAfter() <= 101);
+
+        // Each user has its own bucket
+        Assert.assertTrue(admissionControl.admit("user2").isAdmitted());
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        // One call every 50 milliseconds, without burst
+        UserAdmissionControl admissionControl = new UserAdmissionControl(20, 1, 10);
+        admissionControl.admit("user1").release();
+        Assert.assertFalse(admissionControl.admit("user1").isAdmitted());
+        Thread.sleep(100);
+        Assert.assertTrue(admissionControl.admit("user1").isAdmitted());
+    }
+
+    @Test
+    public void testInFlight() throws Exception {
+        UserAdmissionControl admissionControl = new UserAdmissionControl(1000, 100, 2);
+        Admission admission1 = admissionControl.admit("user1");
+        Admission admission2 = admissionControl.admit("user1");
+        Assert.assertTrue(admission1.isAdmitted());
+        Assert.assertTrue(admission2.isAdmitted());
+
+        // Too many calls in flight
+        Admission admission3 = admissionControl.admit("user1");
+        Assert.assertFalse(admission3.isAdmitted());
+        Assert.assertEquals(1, admission3.getRetryAfter());
+
+        // Releasing twice frees only one slot
+        admission1.release();
+        admission1.release();
+        Assert.assertTrue(admissionControl.admit("user1").isAdmitted());
+        Assert.assertFalse(admissionControl.admit("user1").isAdmitted());
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        // One call every 100 seconds, in bursts of 10
+        UserAdmissionControl admissionControl = new UserAdmissionControl(0.01, 10, 2);
+        Assert.assertEquals(0, admissionControl.acquire("user1", 0));
+        Assert.assertEquals(4, admissionControl.acquire("user1", 4));
+
+        // Only the rest of the burst is granted, then nothing
+        Assert.assertEquals(6, admissionControl.acquire("user1", 500));
+        Assert.assertEquals(0, admissionControl.acquire("user1", 1));
+        Assert.assertFalse(admissionControl.admit("user1").isAdmitted());
+    }
+
+    @Test
+    public void testAcquireWait() throws Exception {
+        // One call every 50 milliseconds, in bursts of 2
+        UserAdmissionControl admissionControl = new UserAdmissionControl(20, 2, 2);
+        Assert.assertEquals(2, admissionControl.acquire("user1", 5, 0));
+
+        // The next token is waited for
+        long startTime = System.nanoTime();
+        Assert.assertEquals(1, admissionControl.acquire("user1", 5, 1000));
+        Assert.assertTrue(System.nanoTime() - startTime >= 30000000L);
+
+        // Nothing is granted after the wait
+        Assert.assertEquals(0, admissionControl.acquire("user1", 5, 10));
+    }
+}
@@ -0,0 +1,133 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.sismics.books.BaseTransactionalTest;
+import com.sismics.books.core.model.jpa.Book;
+import com.sismics.books.core.model.jpa.Tag;
+import com.sismics.books.core.model.jpa.User;
+import com.sismics.books.core.model.jpa.UserBook;
+
+/**
+ * Test of the set-based operations on the tags of user books.
+ *
+ * @author agent
+ */
+public class TestUserBookTagDao extends BaseTransactionalTest {
+    @Test
+    public void testAddRemoveTags() throws Exception {
+        String userId = createUser();
+        String userBookId1 = createUserBook(userId);
+        String userBookId2 = createUserBook(userId);
+        String userBookId3 = createUserBook(userId);
+        String tagId1 = createTag(userId, "tag1");
+        String tagId2 = createTag(userId, "tag2");
+        UserBookTagDao userBookTagDao = new UserBookTagDao();
+        TagDao tagDao = new TagDao();
+
+        // Add a tag to two books
+        Set<String> changedSet = userBookTagDao.addTags(Arrays.asList(userBookId1, userBookId2), Collections.singletonList(tagId1));
+        Assert.assertEquals(Sets.newHashSet(userBookId1, userBookId2), changedSet);
+
+        // Add two tags to three books, the existing associations are skipped
+        changedSet = userBookTagDao.addTags(Arrays.asList(userBookId1, userBookId2, userBookId3), Arrays.asList(tagId1, tagId2));
+        Assert.assertEquals(Sets.newHashSet(userBookId1, userBookId2, userBookId3), changedSet);
+        Assert.assertEquals(2, tagDao.getByUserBookId(userBookId3).size());
+
+        // Adding again changes nothing
+        changedSet = userBookTagDao.addTags(Arrays.asList(userBookId1, userBookId2, userBookId3), Arrays.asList(tagId1, tagId2));
+        Assert.assertTrue(changedSet.isEmpty());
+
+        // Remove a tag from two books only
+        changedSet = userBookTagDao.removeTags(Arrays.asList(userBookId1, userBookId3), Collections.singletonList(tagId1));
+        Assert.assertEquals(Sets.newHashSet(userBookId1, userBookId3), changedSet);
+        Assert.assertEquals(1, tagDao.getByUserBookId(userBookId1).size());
+        Assert.assertEquals(2, tagDao.getByUserBookId(userBookId2).size());
+        Assert.assertEquals(1, tagDao.getByUserBookId(userBookId3).size());
+
+        // Removing again changes nothing
+        changedSet = userBookTagDao.removeTags(Arrays.asList(userBookId1, userBookId3), Collections.singletonList(tagId1));
+        Assert.assertTrue(changedSet.isEmpty());
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        // More books than a statement takes
+        String userId = createUser();
+        List<String> userBookIdList = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            userBookIdList.add(createUserBook(userId));
+        }
+        String tagId = createTag(userId, "tag");
+        UserBookTagDao userBookTagDao = new UserBookTagDao();
+
+        Set<String> changedSet = userBookTagDao.addTags(userBookIdList, Collections.singletonList(tagId));
+        Assert.assertEquals(150, changedSet.size());
+        Assert.assertTrue(userBookTagDao.addTags(userBookIdList, Collections.singletonList(tagId)).isEmpty());
+
+        changedSet = userBookTagDao.removeTags(userBookIdList, Collections.singletonList(tagId));
+        Assert.assertEquals(150, changedSet.size());
+        Assert.assertTrue(new TagDao().getByUserBookId(userBookIdList.get(149)).isEmpty());
+    }
+
+    /**
+     * Creates a user.
+     *
+     * @return User ID
+     */
+    private static String createUser() throws Exception {
+        User user = new User();
+        user.setUsername("user" + UUID.randomUUID().toString().substring(0, 8));
+        user.setPassword("12345678");
+        user.setEmail("user@books.com");
+        user.setLocaleId("en");
+        user.setRoleId("user");
+        return new UserDao().create(user);
+    }
+
+    /**
+     * Creates a book and adds it to a user.
+     *
+     * @param userId User ID
+     * @return User book ID
+     */
+    private static String createUserBook(String userId) throws Exception {
+        Book book = new Book();
+        book.setId(UUID.randomUUID().toString());
+        book.setTitle("Title");
+        book.setAuthor("Author");
+        book.setPublishDate(new Date());
+        new BookDao().create(book);
+
+        UserBook userBook = new UserBook();
+        userBook.setUserId(userId);
+        userBook.setBookId(book.getId());
+        userBook.setCreateDate(new Date());
+        return new UserBookDao().create(userBook);
+    }
+
+    /**
+     * Creates a tag.
+     *
+     * @param userId User ID
+     * @param name Tag name
+     * @return Tag ID
+     */
+    private static String createTag(String userId, String name) throws Exception {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setColor("#ff0000");
+        tag.setUserId(userId);
+        return new TagDao().create(tag);
+    }
+}
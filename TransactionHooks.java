@@ -0,0 +1,146 @@
+package com.sismics.books.core.util;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * Actions run when the transaction of the current thread completes.
+ *
+ * In-memory state mirroring the database, such as caches and buffers, must only be
+ * changed once the database change is committed, and left untouched on a rollback.
+ *
+ * @author agent
+ */
+public class TransactionHooks {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TransactionHooks.class);
+
+    /**
+     * Action run on transaction completion.
+     */
+    public interface Hook {
+        /**
+         * Called once the transaction is completed.
+         *
+         * @param committed True if committed, false if rolled back
+         */
+        void afterCompletion(boolean committed);
+    }
+
+    /**
+     * Runs an action after the transaction of the current thread is committed.
+     * Without a transaction, the action is run now.
+     *
+     * @param runnable Action
+     */
+    public static void afterCommit(final Runnable runnable) {
+        afterCompletion(new Hook() {
+            @Override
+            public void afterCompletion(boolean committed) {
+                if (committed) {
+                    runnable.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs an action after the transaction of the current thread is committed or rolled back.
+     * Without a transaction, the action is run now, as committed.
+     * Errors thrown by the action are logged, the transaction outcome is already decided.
+     *
+     * @param hook Action
+     */
+    public static void afterCompletion(final Hook hook) {
+        EntityManager em = getActiveEntityManager();
+        if (em == null) {
+            run(hook, true);
+            return;
+        }
+        em.unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+                // NOP
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                run(hook, status == Status.STATUS_COMMITTED);
+            }
+        });
+    }
+
+    /**
+     * Runs an action in a transaction, as TransactionUtil.handle(), and returns its outcome.
+     *
+     * @param runnable Action
+     * @return True if the transaction is committed, false if rolled back or if nested
+     *         in the transaction of the caller, which is not committed yet
+     */
+    public static boolean handle(final Runnable runnable) {
+        final boolean[] committed = { false };
+        TransactionUtil.handle(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                afterCompletion(new Hook() {
+                    @Override
+                    public void afterCompletion(boolean success) {
+                        committed[0] = success;
+                    }
+                });
+            }
+        });
+        return committed[0];
+    }
+
+    /**
+     * Commits the transaction of the current thread now and closes its entity manager,
+     * releasing its database connection before a long response is written.
+     * The thread must not use the database afterwards.
+     */
+    public static void commitAndClose() {
+        EntityManager em = getActiveEntityManager();
+        if (em != null) {
+            em.getTransaction().commit();
+            em.close();
+        }
+    }
+
+    /**
+     * Returns the entity manager of the current thread, if it has an active transaction.
+     *
+     * @return Entity manager, or null
+     */
+    private static EntityManager getActiveEntityManager() {
+        ThreadLocalContext context = ThreadLocalContext.get();
+        EntityManager em = context == null ? null : context.getEntityManager();
+        if (em == null || !em.isOpen() || em.getTransaction() == null || !em.getTransaction().isActive()) {
+            return null;
+        }
+        return em;
+    }
+
+    /**
+     * Runs a hook, logging its errors.
+     *
+     * @param hook Hook
+     * @param committed True if committed
+     */
+    private static void run(Hook hook, boolean committed) {
+        try {
+            hook.afterCompletion(committed);
+        } catch (Exception e) {
+            log.error("Error running a transaction hook", e);
+        }
+    }
+}
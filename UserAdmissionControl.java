@@ -0,0 +1,286 @@
+package com.sismics.books.core.service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Per-user admission control of the external calls.
+ *
+ * Each user has a token bucket, implemented as a generic cell rate algorithm on
+ * a single atomic value, and a cap on the calls in flight. Both are checked
+ * with compare-and-set only.
+ *
+ * The imports have their own budget, separate from the interactive one, so that
+ * a large import neither starves nor is starved by the requests of its user.
+ *
+ * @author agent
+ */
+public class UserAdmissionControl {
+    /**
+     * Singleton.
+     */
+    private static final UserAdmissionControl instance = new UserAdmissionControl(
+            Double.parseDouble(System.getProperty("books.admission.rate", "1")),
+            Integer.getInteger("books.admission.burst", 10),
+            Integer.getInteger("books.admission.maxInFlight", 2));
+
+    /**
+     * Budget of the background lookups of the imports, only taken with acquire().
+     */
+    private static final UserAdmissionControl importInstance = new UserAdmissionControl(
+            Double.parseDouble(System.getProperty("books.import.admission.rate", "5")),
+            Integer.getInteger("books.import.admission.burst", 50),
+            0);
+
+    /**
+     * Retry delay when too many calls are in flight, in seconds.
+     */
+    private static final long IN_FLIGHT_RETRY_AFTER = 1;
+
+    /**
+     * Interval between two tokens, in nanoseconds.
+     */
+    private final long interval;
+
+    /**
+     * Tolerance of the bucket, in nanoseconds: interval times burst minus one.
+     */
+    private final long tolerance;
+
+    /**
+     * Maximum number of calls in flight by user.
+     */
+    private final int maxInFlight;
+
+    /**
+     * User states by user ID. States in use are strongly referenced by their admissions.
+     */
+    private final LoadingCache<String, UserState> userStateCache;
+
+    /**
+     * Constructor of UserAdmissionControl.
+     *
+     * @param rate Sustained rate of calls by user, per second
+     * @param burst Maximum burst of calls by user
+     * @param maxInFlight Maximum number of calls in flight by user
+     */
+    public UserAdmissionControl(double rate, int burst, int maxInFlight) {
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tolerance = interval * (burst - 1);
+        this.maxInFlight = maxInFlight;
+        this.userStateCache = CacheBuilder.newBuilder()
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(new CacheLoader<String, UserState>() {
+                    @Override
+                    public UserState load(String userId) {
+                        return new UserState(System.nanoTime());
+                    }
+                });
+    }
+
+    /**
+     * Returns the admission control.
+     *
+     * @return Admission control
+     */
+    public static UserAdmissionControl getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the admission control of the background lookups of the imports.
+     *
+     * @return Admission control
+     */
+    public static UserAdmissionControl getImportInstance() {
+        return importInstance;
+    }
+
+    /**
+     * Asks for the admission of an external call.
+     * An admitted call must be released when done.
+     *
+     * @param userId User ID
+     * @return Admission
+     */
+    public Admission admit(String userId) {
+        UserState userState = getUserState(userId);
+
+        // Take a slot
+        int inFlight;
+        do {
+            inFlight = userState.inFlight.get();
+            if (inFlight >= maxInFlight) {
+                return new Admission(null, IN_FLIGHT_RETRY_AFTER);
+            }
+        } while (!userState.inFlight.compareAndSet(inFlight, inFlight + 1));
+
+        // Take a token
+        long now = System.nanoTime();
+        long tat;
+        do {
+            tat = userState.theoreticalArrivalTime.get();
+            long allowedAt = tat - tolerance;
+            if (now < allowedAt) {
+                userState.inFlight.decrementAndGet();
+                return new Admission(null, TimeUnit.NANOSECONDS.toSeconds(allowedAt - now) + 1);
+            }
+        } while (!userState.theoreticalArrivalTime.compareAndSet(tat, Math.max(tat, now) + interval));
+
+        return new Admission(userState, 0);
+    }
+
+    /**
+     * Takes up to a number of tokens for background calls, without waiting.
+     * The calls in flight are not counted, their parallelism is bounded by the caller.
+     *
+     * @param userId User ID
+     * @param count Number of calls wanted
+     * @return Number of calls admitted, between 0 and count
+     */
+    public int acquire(String userId, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        return acquire(getUserState(userId), count);
+    }
+
+    /**
+     * Takes up to a number of tokens for background calls, waiting for the first one if needed.
+     * The calls in flight are not counted, their parallelism is bounded by the caller.
+     *
+     * @param userId User ID
+     * @param count Number of calls wanted
+     * @param timeout Maximum wait, in milliseconds
+     * @return Number of calls admitted, between 1 and count, or 0 on timeout
+     * @throws InterruptedException
+     */
+    public int acquire(String userId, int count, long timeout) throws InterruptedException {
+        if (count <= 0) {
+            return 0;
+        }
+        UserState userState = getUserState(userId);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            int admitted = acquire(userState, count);
+            long now = System.nanoTime();
+            if (admitted > 0 || now >= deadline) {
+                return admitted;
+            }
+
+            // Sleep until the next token conforms, or until the deadline
+            long wait = userState.theoreticalArrivalTime.get() - tolerance - now;
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, Math.min(wait, deadline - now)));
+        }
+    }
+
+    /**
+     * Takes up to a number of tokens from the bucket of a user, without waiting.
+     *
+     * @param userState User state
+     * @param count Number of calls wanted, positive
+     * @return Number of calls admitted, between 0 and count
+     */
+    private int acquire(UserState userState, int count) {
+        long now = System.nanoTime();
+        long tat;
+        int admitted;
+        do {
+            tat = userState.theoreticalArrivalTime.get();
+            long start = Math.max(tat, now);
+            if (now + tolerance < start) {
+                return 0;
+            }
+            admitted = (int) Math.min(count, (now + tolerance - start) / interval + 1);
+        } while (!userState.theoreticalArrivalTime.compareAndSet(tat, Math.max(tat, now) + admitted * interval));
+        return admitted;
+    }
+
+    /**
+     * Returns the state of a user, created if needed.
+     *
+     * @param userId User ID
+     * @return User state
+     */
+    private UserState getUserState(String userId) {
+        try {
+            return userStateCache.get(userId);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Admission of an external call.
+     */
+    public static class Admission {
+        /**
+         * State of the admitted user, null if rejected.
+         */
+        private UserState userState;
+
+        /**
+         * Delay before retrying a rejected call, in seconds.
+         */
+        private final long retryAfter;
+
+        private Admission(UserState userState, long retryAfter) {
+            this.userState = userState;
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * Returns true if the call is admitted.
+         *
+         * @return Admitted
+         */
+        public synchronized boolean isAdmitted() {
+            return userState != null;
+        }
+
+        /**
+         * Returns the delay before retrying a rejected call, in seconds.
+         *
+         * @return Retry delay
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        /**
+         * Releases the slot of an admitted call. Does nothing if rejected or already released.
+         * May be called from another thread than the admitted one.
+         */
+        public synchronized void release() {
+            if (userState != null) {
+                userState.inFlight.decrementAndGet();
+                userState = null;
+            }
+        }
+    }
+
+    /**
+     * Admission state of a user.
+     */
+    private static class UserState {
+        /**
+         * Theoretical arrival time of the next call, in nanoseconds.
+         */
+        private final AtomicLong theoreticalArrivalTime;
+
+        /**
+         * Number of calls in flight.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private UserState(long now) {
+            theoreticalArrivalTime = new AtomicLong(now);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.sismics.books.core.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.sismics.books.core.dao.jpa.UserBookCountCache;
+import com.sismics.books.core.util.TransactionHooks;
+
+/**
+ * Per-user log of the user book changes, used by clients to sync incrementally.
+ *
+ * Each user log keeps only the last change of each user book, in sequence order.
+ * Changes older than the retention time, or beyond the maximum number of entries,
+ * are compacted away: a sync token older than a compacted change gets a reset,
+ * and the client must then download the full library.
+ *
+ * A change is logged once its transaction is committed, in commit order, so a sync
+ * never returns a change that is rolled back or misses one that is committed late.
+ * Once logged, every change also invalidates the cached book counts of the user,
+ * and is pushed to the event subscribers of the user.
+ *
+ * The log lives in the memory of a single node, tokens issued before a restart always
+ * get a reset. It only supports a deployment on one node: a change committed by another
+ * node is not logged here. The logs of the users idle for the retention time, or beyond
+ * the maximum number of users, are evicted: the tokens issued before an eviction get a reset.
+ *
+ * @author agent
+ */
+public class UserBookChangeLog {
+    /**
+     * Change type.
+     */
+    public enum ChangeType {
+        /**
+         * User book created.
+         */
+        ADDED,
+
+        /**
+         * User book updated.
+         */
+        UPDATED,
+
+        /**
+         * User book marked as read or unread.
+         */
+        READ,
+
+        /**
+         * User book deleted.
+         */
+        DELETED
+    }
+
+    /**
+     * Singleton.
+     */
+    private static final UserBookChangeLog instance = new UserBookChangeLog(
+            Long.getLong("books.changes.retention", 30L * 24 * 3600 * 1000),
+            Integer.getInteger("books.changes.maxEntries", 10000),
+            Long.getLong("books.changes.maxUsers", 10000L));
+
+    /**
+     * Identifier of this log, changes on every restart.
+     */
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * Change sequence, shared by all users.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Last sequence recorded in an evicted user log.
+     */
+    private final AtomicLong evictionFloor = new AtomicLong();
+
+    /**
+     * User logs by user ID.
+     */
+    private final LoadingCache<String, UserLog> userLogCache;
+
+    /**
+     * Retention time of a change, in milliseconds.
+     */
+    private final long retention;
+
+    /**
+     * Maximum number of changes by user.
+     */
+    private final int maxEntries;
+
+    /**
+     * Constructor of UserBookChangeLog.
+     *
+     * @param retention Retention time of a change, in milliseconds
+     * @param maxEntries Maximum number of changes by user
+     * @param maxUsers Maximum number of user logs
+     */
+    public UserBookChangeLog(long retention, int maxEntries, long maxUsers) {
+        this.retention = retention;
+        this.maxEntries = maxEntries;
+        this.userLogCache = CacheBuilder.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(retention, TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<String, UserLog>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, UserLog> notification) {
+                        evict(notification.getValue());
+                    }
+                })
+                .build(new CacheLoader<String, UserLog>() {
+                    @Override
+                    public UserLog load(String userId) {
+                        return new UserLog(evictionFloor.get());
+                    }
+                });
+    }
+
+    /**
+     * Returns the change log.
+     *
+     * @return Change log
+     */
+    public static UserBookChangeLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records a change, logged once the transaction of the current thread is committed.
+     *
+     * @param userId User ID
+     * @param userBookId User book ID
+     * @param changeType Change type
+     */
+    public void record(final String userId, final String userBookId, final ChangeType changeType) {
+        // A change logged, counted or pushed before the commit could still be rolled back
+        TransactionHooks.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                log(userId, userBookId, changeType);
+                UserBookCountCache.getInstance().invalidate(userId);
+                LibraryEventBroker.getInstance().publish(userId, changeType.name().toLowerCase(), "{\"id\":\"" + userBookId + "\"}");
+            }
+        });
+    }
+
+    /**
+     * Adds a committed change to the log of its user.
+     *
+     * @param userId User ID
+     * @param userBookId User book ID
+     * @param changeType Change type
+     */
+    private void log(String userId, String userBookId, ChangeType changeType) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            UserLog userLog = userLogCache.getUnchecked(userId);
+            synchronized (userLog) {
+                if (userLog.evicted) {
+                    // Evicted in the meantime, record in a new log
+                    continue;
+                }
+
+                // Keep only the last change of each user book, at the end of the log
+                userLog.entryMap.remove(userBookId);
+                userLog.entryMap.put(userBookId, new Entry(sequence.incrementAndGet(), changeType, now));
+
+                // Compact the oldest changes
+                Iterator<Entry> iterator = userLog.entryMap.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (userLog.entryMap.size() <= maxEntries && entry.time >= now - retention) {
+                        break;
+                    }
+                    userLog.floor = entry.sequence;
+                    iterator.remove();
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Returns the changes of a user since a sync token.
+     *
+     * @param userId User ID
+     * @param token Sync token, or null for a first sync
+     * @return Changes
+     */
+    public Changes getChanges(String userId, String token) {
+        long since = parseToken(token);
+        Changes changes = new Changes();
+
+        // Read the sequence first, changes logged later are after it,
+        // and a change is added to its user log under the lock its sequence is assigned
+        long next = sequence.get();
+        UserLog userLog = userLogCache.getIfPresent(userId);
+        if (userLog == null) {
+            // No change since the last eviction at least
+            changes.reset = since < evictionFloor.get();
+            changes.token = formatToken(next);
+            return changes;
+        }
+
+        synchronized (userLog) {
+            changes.reset = since < userLog.floor || userLog.evicted;
+            for (Map.Entry<String, Entry> mapEntry : userLog.entryMap.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (entry.sequence <= since) {
+                    continue;
+                }
+                if (!changes.reset) {
+                    changes.changeMap.put(mapEntry.getKey(), entry.changeType);
+                }
+            }
+        }
+        changes.token = formatToken(Math.max(next, changes.reset ? -1 : since));
+        return changes;
+    }
+
+    /**
+     * Marks a user log as evicted, the tokens issued before now get a reset.
+     *
+     * @param userLog User log
+     */
+    private void evict(UserLog userLog) {
+        synchronized (userLog) {
+            userLog.evicted = true;
+
+            // All the sequences of this log are assigned under its lock, so they are before this one
+            long floor = sequence.get();
+            long previous;
+            do {
+                previous = evictionFloor.get();
+            } while (previous < floor && !evictionFloor.compareAndSet(previous, floor));
+        }
+    }
+
+    /**
+     * Parses a sync token.
+     *
+     * @param token Sync token
+     * @return Sequence, or -1 if the token is missing, malformed or from another log
+     */
+    private long parseToken(String token) {
+        if (token == null) {
+            return -1;
+        }
+        Iterator<String> iterator = Splitter.on('.').split(token).iterator();
+        try {
+            long tokenEpoch = Long.parseLong(iterator.next());
+            long tokenSequence = iterator.hasNext() ? Long.parseLong(iterator.next()) : -1;
+            return tokenEpoch == epoch && !iterator.hasNext() ? tokenSequence : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats a sync token.
+     *
+     * @param sequence Sequence
+     * @return Sync token
+     */
+    private String formatToken(long sequence) {
+        return epoch + "." + sequence;
+    }
+
+    /**
+     * Changes since a sync token.
+     */
+    public static class Changes {
+        /**
+         * True if the token is too old or invalid, and the client must download the full library.
+         */
+        private boolean reset;
+
+        /**
+         * New sync token.
+         */
+        private String token;
+
+        /**
+         * Change types by user book ID, in change order.
+         */
+        private Map<String, ChangeType> changeMap = new LinkedHashMap<>();
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public Map<String, ChangeType> getChangeMap() {
+            return changeMap;
+        }
+    }
+
+    /**
+     * Log of a user.
+     */
+    private static class UserLog {
+        /**
+         * Last change by user book ID, in sequence order.
+         */
+        private final LinkedHashMap<String, Entry> entryMap = new LinkedHashMap<>();
+
+        /**
+         * Sequence of the last compacted change.
+         */
+        private long floor;
+
+        /**
+         * True once evicted from the cache, the log no longer receives changes.
+         */
+        private boolean evicted;
+
+        private UserLog(long floor) {
+            this.floor = floor;
+        }
+    }
+
+    /**
+     * Log entry.
+     */
+    private static class Entry {
+        private final long sequence;
+
+        private final ChangeType changeType;
+
+        private final long time;
+
+        private Entry(long sequence, ChangeType changeType, long time) {
+            this.sequence = sequence;
+            this.changeType = changeType;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.sismics.books.core.dao.jpa.criteria.UserBookCriteria;
+
+/**
+ * Cache of the user book counts, by user and list filter.
+ *
+ * Each change to the books of a user increments the generation of the user, and a count
+ * computed in an older generation is no longer exact. Counts at least equal to the approximation
+ * threshold are still returned as approximate until their approximate time to live, so large
+ * libraries are not counted again after each change.
+ *
+ * @author agent
+ */
+public class UserBookCountCache {
+    /**
+     * Maximum number of cached filters by user.
+     */
+    private static final int MAX_FILTERS = 32;
+
+    /**
+     * Singleton.
+     */
+    private static final UserBookCountCache instance = new UserBookCountCache(
+            Long.getLong("books.list.countCache.size", 10000L),
+            Long.getLong("books.list.countTtl", 60000L),
+            Integer.getInteger("books.list.approximateCountThreshold", 10000),
+            Long.getLong("books.list.approximateCountTtl", 300000L));
+
+    /**
+     * Counts by user ID.
+     */
+    private final LoadingCache<String, UserCounts> cache;
+
+    /**
+     * Time to live of an exact count, in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Minimum count returned as approximate after a change.
+     */
+    private final int approximateThreshold;
+
+    /**
+     * Time to live of an approximate count, in milliseconds.
+     */
+    private final long approximateTtl;
+
+    /**
+     * Constructor of UserBookCountCache.
+     *
+     * @param maximumSize Maximum number of users
+     * @param ttl Time to live of an exact count, in milliseconds
+     * @param approximateThreshold Minimum count returned as approximate after a change
+     * @param approximateTtl Time to live of an approximate count, in milliseconds
+     */
+    public UserBookCountCache(long maximumSize, long ttl, int approximateThreshold, long approximateTtl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(Math.max(ttl, approximateTtl), TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<String, UserCounts>() {
+                    @Override
+                    public UserCounts load(String userId) {
+                        return new UserCounts();
+                    }
+                });
+        this.ttl = ttl;
+        this.approximateThreshold = approximateThreshold;
+        this.approximateTtl = approximateTtl;
+    }
+
+    /**
+     * Returns the count cache.
+     *
+     * @return Count cache
+     */
+    public static UserBookCountCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the generation of the books of a user, to read before counting them.
+     *
+     * @param userId User ID
+     * @return Generation
+     */
+    public long getGeneration(String userId) {
+        UserCounts userCounts = cache.getUnchecked(userId);
+        synchronized (userCounts) {
+            return userCounts.generation;
+        }
+    }
+
+    /**
+     * Returns a cached count.
+     *
+     * @param criteria Criteria, with the user ID
+     * @return Count, or null if not cached or expired
+     */
+    public Count get(UserBookCriteria criteria) {
+        UserCounts userCounts = cache.getUnchecked(criteria.getUserId());
+        long now = System.currentTimeMillis();
+        synchronized (userCounts) {
+            Count count = userCounts.countMap.get(getKey(criteria));
+            if (count == null) {
+                return null;
+            }
+            if (count.generation == userCounts.generation && count.time > now - ttl) {
+                return count;
+            }
+            if (count.value >= approximateThreshold && count.time > now - approximateTtl) {
+                return new Count(count.value, count.generation, count.time, true);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches a count, unless the books of the user changed since it started.
+     *
+     * @param criteria Criteria, with the user ID
+     * @param generation Generation read before counting
+     * @param value Count
+     * @return Count
+     */
+    public Count put(UserBookCriteria criteria, long generation, int value) {
+        UserCounts userCounts = cache.getUnchecked(criteria.getUserId());
+        Count count = new Count(value, generation, System.currentTimeMillis(), false);
+        synchronized (userCounts) {
+            if (generation == userCounts.generation) {
+                userCounts.countMap.put(getKey(criteria), count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks the cached counts of a user as no longer exact.
+     *
+     * @param userId User ID
+     */
+    public void invalidate(String userId) {
+        UserCounts userCounts = cache.getIfPresent(userId);
+        if (userCounts != null) {
+            synchronized (userCounts) {
+                userCounts.generation++;
+            }
+        }
+    }
+
+    /**
+     * Returns the cache key of the filters of a criteria.
+     *
+     * @param criteria Criteria
+     * @return Key
+     */
+    private static List<Object> getKey(UserBookCriteria criteria) {
+        return Arrays.<Object>asList(criteria.getSearch(), criteria.getRead(), criteria.getTagIdList());
+    }
+
+    /**
+     * Counts of a user.
+     */
+    private static class UserCounts {
+        /**
+         * Incremented on each change to the books of the user. Guarded by this.
+         */
+        private long generation;
+
+        /**
+         * Counts by filter, least recently used first. Guarded by this.
+         */
+        private final Map<List<Object>, Count> countMap = new LinkedHashMap<List<Object>, Count>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Count> eldest) {
+                return size() > MAX_FILTERS;
+            }
+        };
+    }
+
+    /**
+     * Cached count.
+     */
+    public static class Count {
+        private final int value;
+
+        private final long generation;
+
+        private final long time;
+
+        /**
+         * True if the books changed since the count.
+         */
+        private final boolean approximate;
+
+        private Count(int value, long generation, long time, boolean approximate) {
+            this.value = value;
+            this.generation = generation;
+            this.time = time;
+            this.approximate = approximate;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public boolean isApproximate() {
+            return approximate;
+        }
+    }
+}
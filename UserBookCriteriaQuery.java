@@ -0,0 +1,106 @@
+package com.sismics.books.core.dao.jpa.criteria;
+
+import java.util.Date;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+import com.sismics.books.core.dao.jpa.dto.UserBookDto;
+
+/**
+ * SQL of the user book lists, shared by the queries listing user books,
+ * so that pages, counts and ID lists select, filter and sort the same way.
+ *
+ * UserBookDetailDao.findPage() and count() replace UserBookDao.findByCriteria(),
+ * which has no caller left in the web application and must not be extended.
+ *
+ * @author agent
+ */
+public class UserBookCriteriaQuery {
+    /**
+     * Sort columns of the user book lists, by sort column index.
+     */
+    private static final String[] SORT_COLUMNS = { "ub.UBK_ID_C", "b.BOK_TITLE_C", "b.BOK_SUBTITLE_C", "b.BOK_AUTHOR_C",
+            "b.BOK_LANGUAGE_C", "b.BOK_PUBLISHDATE_D", "ub.UBK_CREATEDATE_D", "ub.UBK_READDATE_D" };
+
+    /**
+     * Columns of a user book list row, read by toUserBookDto().
+     */
+    public static final String USER_BOOK_COLUMNS = "ub.UBK_ID_C, b.BOK_TITLE_C, b.BOK_SUBTITLE_C, b.BOK_AUTHOR_C, "
+            + "b.BOK_LANGUAGE_C, b.BOK_PUBLISHDATE_D, ub.UBK_CREATEDATE_D, ub.UBK_READDATE_D";
+
+    /**
+     * Appends the from and where clauses matching criteria, on the user books aliased ub and their books aliased b.
+     *
+     * @param sb Query
+     * @param parameterMap Query parameters
+     * @param criteria Search criteria
+     */
+    public static void appendFromWhere(StringBuilder sb, Map<String, Object> parameterMap, UserBookCriteria criteria) {
+        sb.append(" from T_USER_BOOK ub ");
+        sb.append(" join T_BOOK b on b.BOK_ID_C = ub.UBK_IDBOOK_C ");
+        sb.append(" where ub.UBK_IDUSER_C = :userId and ub.UBK_DELETEDATE_D is null ");
+        parameterMap.put("userId", criteria.getUserId());
+        if (criteria.getTagIdList() != null) {
+            int index = 0;
+            for (String tagId : criteria.getTagIdList()) {
+                sb.append(" and exists (select bt.BOT_ID_C from T_USER_BOOK_TAG bt where bt.BOT_IDUSERBOOK_C = ub.UBK_ID_C ");
+                sb.append(" and bt.BOT_IDTAG_C = :tagId").append(index).append(") ");
+                parameterMap.put("tagId" + index, tagId);
+                index++;
+            }
+        }
+        if (!Strings.isNullOrEmpty(criteria.getSearch())) {
+            sb.append(" and (b.BOK_TITLE_C like :search or b.BOK_DESCRIPTION_C like :search or b.BOK_AUTHOR_C like :search) ");
+            parameterMap.put("search", "%" + criteria.getSearch() + "%");
+        }
+        if (criteria.getRead() != null) {
+            sb.append(" and ub.UBK_READDATE_D is ").append(criteria.getRead() ? "not null " : "null ");
+        }
+    }
+
+    /**
+     * Appends the order by clause of a sort, with the user book ID last so that pages do not overlap.
+     *
+     * @param sb Query
+     * @param sortColumn Sort column index, null for the default
+     * @param asc Ascending sort, null for the default
+     */
+    public static void appendOrderBy(StringBuilder sb, Integer sortColumn, Boolean asc) {
+        int column = sortColumn == null || sortColumn < 0 || sortColumn >= SORT_COLUMNS.length ? 0 : sortColumn;
+        String direction = asc == null || asc ? " asc" : " desc";
+        sb.append(" order by ").append(SORT_COLUMNS[column]).append(direction);
+        if (column != 0) {
+            sb.append(", ub.UBK_ID_C").append(direction);
+        }
+    }
+
+    /**
+     * Reads a user book list row, selected with USER_BOOK_COLUMNS.
+     *
+     * @param o Row
+     * @return User book
+     */
+    public static UserBookDto toUserBookDto(Object[] o) {
+        int i = 0;
+        UserBookDto userBookDto = new UserBookDto();
+        userBookDto.setId((String) o[i++]);
+        userBookDto.setTitle((String) o[i++]);
+        userBookDto.setSubtitle((String) o[i++]);
+        userBookDto.setAuthor((String) o[i++]);
+        userBookDto.setLanguage((String) o[i++]);
+        userBookDto.setPublishTimestamp(toTimestamp((Date) o[i++]));
+        userBookDto.setCreateTimestamp(toTimestamp((Date) o[i++]));
+        userBookDto.setReadTimestamp(toTimestamp((Date) o[i++]));
+        return userBookDto;
+    }
+
+    /**
+     * Returns the timestamp of a date.
+     *
+     * @param date Date, may be null
+     * @return Timestamp, or null
+     */
+    private static Long toTimestamp(Date date) {
+        return date == null ? null : date.getTime();
+    }
+}
@@ -0,0 +1,262 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import com.sismics.books.core.dao.jpa.criteria.UserBookCriteria;
+import com.sismics.books.core.dao.jpa.criteria.UserBookCriteriaQuery;
+import com.sismics.books.core.dao.jpa.dto.TagDto;
+import com.sismics.books.core.dao.jpa.dto.UserBookDetailDto;
+import com.sismics.books.core.dao.jpa.dto.UserBookDto;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * User book detail DAO.
+ * 
+ * @author agent
+ */
+public class UserBookDetailDao {
+    /**
+     * Index of the first tag column.
+     */
+    private static final int TAG_INDEX = 13;
+    
+    /**
+     * Returns a user book with its book data and tags, in one query.
+     * 
+     * @param userBookId User book ID
+     * @param userId Owner ID
+     * @return User book detail, or null if not found or not owned by this user
+     */
+    public UserBookDetailDto getUserBookDetail(String userBookId, String userId) {
+        List<UserBookDetailDto> userBookDetailList = getUserBookDetailList(Collections.singletonList(userBookId), userId);
+        return userBookDetailList.isEmpty() ? null : userBookDetailList.get(0);
+    }
+    
+    /**
+     * Locks a user book and its book until the end of the transaction,
+     * so that concurrent updates of the same book are applied one after the other.
+     * Must be called before the user book and the book are read.
+     * 
+     * @param userBookId User book ID
+     * @param userId Owner ID
+     * @return True if the user book is found and owned by this user
+     */
+    public boolean lockUserBook(String userBookId, String userId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        StringBuilder sb = new StringBuilder("select ub.UBK_ID_C, b.BOK_ID_C ");
+        sb.append(" from T_USER_BOOK ub ");
+        sb.append(" join T_BOOK b on b.BOK_ID_C = ub.UBK_IDBOOK_C ");
+        sb.append(" where ub.UBK_ID_C = :userBookId and ub.UBK_IDUSER_C = :userId and ub.UBK_DELETEDATE_D is null ");
+        sb.append(" for update ");
+        
+        Query q = em.createNativeQuery(sb.toString());
+        q.setParameter("userBookId", userBookId);
+        q.setParameter("userId", userId);
+        return !q.getResultList().isEmpty();
+    }
+    
+    /**
+     * Returns several user books with their book data and tags, in one query.
+     * 
+     * @param userBookIdList User book IDs
+     * @param userId Owner ID
+     * @return User book details, user books not found or not owned by this user are absent
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserBookDetailDto> getUserBookDetailList(Collection<String> userBookIdList, String userId) {
+        List<UserBookDetailDto> userBookDetailList = new ArrayList<>();
+        if (userBookIdList.isEmpty()) {
+            return userBookDetailList;
+        }
+        
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        StringBuilder sb = new StringBuilder("select ub.UBK_ID_C, ub.UBK_CREATEDATE_D, ub.UBK_READDATE_D, ");
+        sb.append(" b.BOK_ID_C, b.BOK_TITLE_C, b.BOK_SUBTITLE_C, b.BOK_AUTHOR_C, b.BOK_DESCRIPTION_C, ");
+        sb.append(" b.BOK_ISBN10_C, b.BOK_ISBN13_C, b.BOK_PAGECOUNT_N, b.BOK_LANGUAGE_C, b.BOK_PUBLISHDATE_D, ");
+        sb.append(" t.TAG_ID_C, t.TAG_NAME_C, t.TAG_COLOR_C ");
+        sb.append(" from T_USER_BOOK ub ");
+        sb.append(" join T_BOOK b on b.BOK_ID_C = ub.UBK_IDBOOK_C ");
+        sb.append(" left join T_USER_BOOK_TAG bt on bt.BOT_IDUSERBOOK_C = ub.UBK_ID_C ");
+        sb.append(" left join T_TAG t on t.TAG_ID_C = bt.BOT_IDTAG_C and t.TAG_DELETEDATE_D is null ");
+        sb.append(" where ub.UBK_ID_C in (:userBookIdList) and ub.UBK_IDUSER_C = :userId and ub.UBK_DELETEDATE_D is null ");
+        sb.append(" order by ub.UBK_ID_C, t.TAG_NAME_C ");
+        
+        Query q = em.createNativeQuery(sb.toString());
+        q.setParameter("userBookIdList", userBookIdList);
+        q.setParameter("userId", userId);
+        List<Object[]> l = q.getResultList();
+        
+        // One row per tag, the user book and book columns are repeated
+        UserBookDetailDto userBookDetailDto = null;
+        for (Object[] o : l) {
+            int i = 0;
+            String id = (String) o[i++];
+            if (userBookDetailDto == null || !userBookDetailDto.getId().equals(id)) {
+                userBookDetailDto = new UserBookDetailDto();
+                userBookDetailDto.setId(id);
+                userBookDetailDto.setCreateDate((Date) o[i++]);
+                userBookDetailDto.setReadDate((Date) o[i++]);
+                userBookDetailDto.setBookId((String) o[i++]);
+                userBookDetailDto.setTitle((String) o[i++]);
+                userBookDetailDto.setSubtitle((String) o[i++]);
+                userBookDetailDto.setAuthor((String) o[i++]);
+                userBookDetailDto.setDescription((String) o[i++]);
+                userBookDetailDto.setIsbn10((String) o[i++]);
+                userBookDetailDto.setIsbn13((String) o[i++]);
+                Number pageCount = (Number) o[i++];
+                userBookDetailDto.setPageCount(pageCount == null ? null : pageCount.longValue());
+                userBookDetailDto.setLanguage((String) o[i++]);
+                userBookDetailDto.setPublishDate((Date) o[i++]);
+                userBookDetailList.add(userBookDetailDto);
+            } else {
+                i = TAG_INDEX;
+            }
+            
+            if (o[i] != null) {
+                TagDto tagDto = new TagDto();
+                tagDto.setId((String) o[i]);
+                tagDto.setName((String) o[i + 1]);
+                tagDto.setColor((String) o[i + 2]);
+                userBookDetailDto.getTagList().add(tagDto);
+            }
+        }
+        
+        return userBookDetailList;
+    }
+    
+    /**
+     * Returns a page of user books, without counting them.
+     * 
+     * @param criteria Search criteria
+     * @param sortColumn Sort column index, null for the default
+     * @param asc Ascending sort, null for the default
+     * @param offset Offset of the first user book
+     * @param limit Maximum number of user books
+     * @return User books
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserBookDto> findPage(UserBookCriteria criteria, Integer sortColumn, Boolean asc, int offset, int limit) {
+        Map<String, Object> parameterMap = new HashMap<>();
+        StringBuilder sb = new StringBuilder("select ").append(UserBookCriteriaQuery.USER_BOOK_COLUMNS);
+        UserBookCriteriaQuery.appendFromWhere(sb, parameterMap, criteria);
+        UserBookCriteriaQuery.appendOrderBy(sb, sortColumn, asc);
+        
+        Query q = createQuery(sb, parameterMap);
+        q.setFirstResult(offset);
+        q.setMaxResults(limit);
+        
+        List<UserBookDto> userBookDtoList = new ArrayList<>();
+        for (Object[] o : (List<Object[]>) q.getResultList()) {
+            userBookDtoList.add(UserBookCriteriaQuery.toUserBookDto(o));
+        }
+        return userBookDtoList;
+    }
+    
+    /**
+     * Returns the IDs of the user books matching criteria, up to a limit.
+     * 
+     * @param criteria Search criteria
+     * @param limit Maximum number of user books
+     * @return User book IDs
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> findIdList(UserBookCriteria criteria, int limit) {
+        Map<String, Object> parameterMap = new HashMap<>();
+        StringBuilder sb = new StringBuilder("select ub.UBK_ID_C ");
+        UserBookCriteriaQuery.appendFromWhere(sb, parameterMap, criteria);
+        
+        Query q = createQuery(sb, parameterMap);
+        q.setMaxResults(limit);
+        return q.getResultList();
+    }
+    
+    /**
+     * Counts the user books matching criteria.
+     * 
+     * @param criteria Search criteria
+     * @return Number of user books
+     */
+    public int count(UserBookCriteria criteria) {
+        Map<String, Object> parameterMap = new HashMap<>();
+        StringBuilder sb = new StringBuilder("select count(ub.UBK_ID_C) ");
+        UserBookCriteriaQuery.appendFromWhere(sb, parameterMap, criteria);
+        
+        return ((Number) createQuery(sb, parameterMap).getSingleResult()).intValue();
+    }
+    
+    /**
+     * Creates a native query with its parameters.
+     * 
+     * @param sb Query
+     * @param parameterMap Query parameters
+     * @return Query
+     */
+    private static Query createQuery(StringBuilder sb, Map<String, Object> parameterMap) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery(sb.toString());
+        for (Map.Entry<String, Object> entry : parameterMap.entrySet()) {
+            q.setParameter(entry.getKey(), entry.getValue());
+        }
+        return q;
+    }
+    
+    /**
+     * Returns the titles and authors of all the books of a user, in one query.
+     * 
+     * @param userId Owner ID
+     * @return User book details, with only the IDs, title and author set
+     */
+    @SuppressWarnings("unchecked")
+    public List<UserBookDetailDto> getUserBookTitleList(String userId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select ub.UBK_ID_C, b.BOK_ID_C, b.BOK_TITLE_C, b.BOK_AUTHOR_C from T_USER_BOOK ub " +
+                " join T_BOOK b on b.BOK_ID_C = ub.UBK_IDBOOK_C " +
+                " where ub.UBK_IDUSER_C = :userId and ub.UBK_DELETEDATE_D is null");
+        q.setParameter("userId", userId);
+        List<UserBookDetailDto> userBookDetailList = new ArrayList<>();
+        for (Object[] o : (List<Object[]>) q.getResultList()) {
+            UserBookDetailDto userBookDetailDto = new UserBookDetailDto();
+            userBookDetailDto.setId((String) o[0]);
+            userBookDetailDto.setBookId((String) o[1]);
+            userBookDetailDto.setTitle((String) o[2]);
+            userBookDetailDto.setAuthor((String) o[3]);
+            userBookDetailList.add(userBookDetailDto);
+        }
+        return userBookDetailList;
+    }
+    
+    /**
+     * Returns the book IDs of several user books, in one query.
+     * 
+     * @param userBookIdList User book IDs
+     * @param userId Owner ID
+     * @return Book IDs by user book ID, user books not found or not owned by this user are absent
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getBookIdMap(Collection<String> userBookIdList, String userId) {
+        Map<String, String> bookIdMap = new LinkedHashMap<>();
+        if (userBookIdList.isEmpty()) {
+            return bookIdMap;
+        }
+        
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select ub.UBK_ID_C, ub.UBK_IDBOOK_C from T_USER_BOOK ub " +
+                " where ub.UBK_ID_C in (:userBookIdList) and ub.UBK_IDUSER_C = :userId and ub.UBK_DELETEDATE_D is null");
+        q.setParameter("userBookIdList", userBookIdList);
+        q.setParameter("userId", userId);
+        for (Object[] o : (List<Object[]>) q.getResultList()) {
+            bookIdMap.put((String) o[0], (String) o[1]);
+        }
+        return bookIdMap;
+    }
+}
@@ -0,0 +1,194 @@
+package com.sismics.books.core.dao.jpa.dto;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * User book with its book data and tags.
+ *
+ * @author agent
+ */
+public class UserBookDetailDto {
+    /**
+     * User book ID.
+     */
+    private String id;
+    
+    /**
+     * Book ID.
+     */
+    private String bookId;
+    
+    /**
+     * Title.
+     */
+    private String title;
+    
+    /**
+     * Subtitle.
+     */
+    private String subtitle;
+    
+    /**
+     * Author.
+     */
+    private String author;
+    
+    /**
+     * Description.
+     */
+    private String description;
+    
+    /**
+     * ISBN-10.
+     */
+    private String isbn10;
+    
+    /**
+     * ISBN-13.
+     */
+    private String isbn13;
+    
+    /**
+     * Page count.
+     */
+    private Long pageCount;
+    
+    /**
+     * Language.
+     */
+    private String language;
+    
+    /**
+     * Publish date.
+     */
+    private Date publishDate;
+    
+    /**
+     * Creation date of the user book.
+     */
+    private Date createDate;
+    
+    /**
+     * Read date.
+     */
+    private Date readDate;
+    
+    /**
+     * Tags.
+     */
+    private List<TagDto> tagList = new ArrayList<>();
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public void setBookId(String bookId) {
+        this.bookId = bookId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getSubtitle() {
+        return subtitle;
+    }
+
+    public void setSubtitle(String subtitle) {
+        this.subtitle = subtitle;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public void setAuthor(String author) {
+        this.author = author;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getIsbn10() {
+        return isbn10;
+    }
+
+    public void setIsbn10(String isbn10) {
+        this.isbn10 = isbn10;
+    }
+
+    public String getIsbn13() {
+        return isbn13;
+    }
+
+    public void setIsbn13(String isbn13) {
+        this.isbn13 = isbn13;
+    }
+
+    public Long getPageCount() {
+        return pageCount;
+    }
+
+    public void setPageCount(Long pageCount) {
+        this.pageCount = pageCount;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    public Date getPublishDate() {
+        return publishDate;
+    }
+
+    public void setPublishDate(Date publishDate) {
+        this.publishDate = publishDate;
+    }
+
+    public Date getCreateDate() {
+        return createDate;
+    }
+
+    public void setCreateDate(Date createDate) {
+        this.createDate = createDate;
+    }
+
+    public Date getReadDate() {
+        return readDate;
+    }
+
+    public void setReadDate(Date readDate) {
+        this.readDate = readDate;
+    }
+
+    public List<TagDto> getTagList() {
+        return tagList;
+    }
+
+    public void setTagList(List<TagDto> tagList) {
+        this.tagList = tagList;
+    }
+}
@@ -0,0 +1,151 @@
+package com.sismics.books.core.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import com.google.common.collect.Lists;
+import com.sismics.util.context.ThreadLocalContext;
+
+/**
+ * Set-based operations on the tags of user books.
+ * 
+ * @author agent
+ */
+public class UserBookTagDao {
+    /**
+     * Number of user books or rows by statement in the bulk operations.
+     */
+    private static final int BATCH_SIZE = 100;
+    
+    /**
+     * Adds tags to a user book.
+     * 
+     * @param userBookId User book ID
+     * @param tagIds Tag IDs not yet on this user book
+     */
+    public void addTags(String userBookId, Collection<String> tagIds) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("insert into T_USER_BOOK_TAG (BOT_ID_C, BOT_IDUSERBOOK_C, BOT_IDTAG_C) values (:id, :userBookId, :tagId)");
+        for (String tagId : tagIds) {
+            q.setParameter("id", UUID.randomUUID().toString());
+            q.setParameter("userBookId", userBookId);
+            q.setParameter("tagId", tagId);
+            q.executeUpdate();
+        }
+    }
+    
+    /**
+     * Removes tags from a user book.
+     * 
+     * @param userBookId User book ID
+     * @param tagIds Tag IDs
+     */
+    public void removeTags(String userBookId, Collection<String> tagIds) {
+        if (tagIds.isEmpty()) {
+            return;
+        }
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("delete from T_USER_BOOK_TAG where BOT_IDUSERBOOK_C = :userBookId and BOT_IDTAG_C in (:tagIds)");
+        q.setParameter("userBookId", userBookId);
+        q.setParameter("tagIds", tagIds);
+        q.executeUpdate();
+    }
+    
+    /**
+     * Adds tags to several user books, skipping the tags already there.
+     * 
+     * @param userBookIds User book IDs, all owned by the same user
+     * @param tagIds Tag IDs, all owned by the same user
+     * @return IDs of the user books changed
+     */
+    public Set<String> addTags(Collection<String> userBookIds, Collection<String> tagIds) {
+        Set<String> existingSet = getUserBookTagSet(userBookIds, tagIds);
+        List<String[]> rowList = new ArrayList<>();
+        Set<String> changedSet = new TreeSet<>();
+        for (String userBookId : userBookIds) {
+            for (String tagId : tagIds) {
+                if (!existingSet.contains(userBookId + ":" + tagId)) {
+                    rowList.add(new String[] { userBookId, tagId });
+                    changedSet.add(userBookId);
+                }
+            }
+        }
+        
+        // Insert several rows by statement
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        for (List<String[]> batch : Lists.partition(rowList, BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder("insert into T_USER_BOOK_TAG (BOT_ID_C, BOT_IDUSERBOOK_C, BOT_IDTAG_C) values ");
+            for (int i = 0; i < batch.size(); i++) {
+                sb.append(i == 0 ? "" : ", ").append("(:id").append(i).append(", :userBookId").append(i).append(", :tagId").append(i).append(")");
+            }
+            Query q = em.createNativeQuery(sb.toString());
+            for (int i = 0; i < batch.size(); i++) {
+                q.setParameter("id" + i, UUID.randomUUID().toString());
+                q.setParameter("userBookId" + i, batch.get(i)[0]);
+                q.setParameter("tagId" + i, batch.get(i)[1]);
+            }
+            q.executeUpdate();
+        }
+        return changedSet;
+    }
+    
+    /**
+     * Removes tags from several user books.
+     * 
+     * @param userBookIds User book IDs, all owned by the same user
+     * @param tagIds Tag IDs
+     * @return IDs of the user books changed
+     */
+    public Set<String> removeTags(Collection<String> userBookIds, Collection<String> tagIds) {
+        Set<String> changedSet = new TreeSet<>();
+        for (String userBookTag : getUserBookTagSet(userBookIds, tagIds)) {
+            changedSet.add(userBookTag.substring(0, userBookTag.indexOf(':')));
+        }
+        if (changedSet.isEmpty()) {
+            return changedSet;
+        }
+        
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        for (List<String> userBookIdList : Lists.partition(new ArrayList<>(changedSet), BATCH_SIZE)) {
+            Query q = em.createNativeQuery("delete from T_USER_BOOK_TAG where BOT_IDUSERBOOK_C in (:userBookIds) and BOT_IDTAG_C in (:tagIds)");
+            q.setParameter("userBookIds", userBookIdList);
+            q.setParameter("tagIds", tagIds);
+            q.executeUpdate();
+        }
+        return changedSet;
+    }
+    
+    /**
+     * Returns the existing associations between user books and tags.
+     * 
+     * @param userBookIds User book IDs
+     * @param tagIds Tag IDs
+     * @return Associations, as "userBookId:tagId"
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> getUserBookTagSet(Collection<String> userBookIds, Collection<String> tagIds) {
+        Set<String> userBookTagSet = new HashSet<>();
+        if (userBookIds.isEmpty() || tagIds.isEmpty()) {
+            return userBookTagSet;
+        }
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        for (List<String> userBookIdList : Lists.partition(new ArrayList<>(userBookIds), BATCH_SIZE)) {
+            Query q = em.createNativeQuery("select BOT_IDUSERBOOK_C, BOT_IDTAG_C from T_USER_BOOK_TAG " +
+                    " where BOT_IDUSERBOOK_C in (:userBookIds) and BOT_IDTAG_C in (:tagIds)");
+            q.setParameter("userBookIds", userBookIdList);
+            q.setParameter("tagIds", tagIds);
+            for (Object[] o : (List<Object[]>) q.getResultList()) {
+                userBookTagSet.add(o[0] + ":" + o[1]);
+            }
+        }
+        return userBookTagSet;
+    }
+}